@@ -0,0 +1,325 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Aging Request Queue
+    - RequestQueue that lets low priority requests catch up while they wait, so a steady flood of high priority
+      traffic cannot starve them
+    - Effective priority = score + (time waited since receiveTime) / agingStep
+      A NotFoundRequest (score 0) waiting 3 aging steps ranks like a Shopping Request (score 2) that just arrived
+    - Every priority class (score of the PriorityPolicy) also has a maximum queueing delay. A request that waited
+      that long is overdue, and overdue requests are taken before anything else, earliest deadline first.
+      The delay is guaranteed as long as the workers can keep up with the overdue requests themselves
+    - No re-heapifying on every tick: each class is ordered by receive time, and all requests of a class age at the
+      same rate, so the head of a class always has the highest effective priority in it and its tail the lowest.
+      take() only compares the class heads and pollLowest() the class tails, O(number of classes), plus O(log n) to
+      remove the one chosen
+    - Receive time, not put() order: pipelined requests are put when the response before them is done, long after
+      they were received, and several acceptors put concurrently. A FIFO would leave such a request behind newer
+      ones and let it overshoot its maximum delay
+    - The classes are sized for the policy given to the constructor, which must be the one the server ranks
+      requests with (scores above its maximum share the top class)
+    - Every operation is synchronized on the queue itself, and waiting threads park on a WaiterStack, like in the
+      HeapRequestQueue
+
+    Sample:
+        // Age by one class every 100ms; with the default policy, no request waits more than 1s
+        config.setRequestQueue(new AgingRequestQueue(100, 1000, 1000, 1000, 1000));
+        // With a custom policy
+        config.setPriorityPolicy(policy).setRequestQueue(new AgingRequestQueue(policy, 100));
+ */
+public class AgingRequestQueue implements RequestQueue {
+    private static final Comparator<Request> RECEIVE_ORDER = Comparator.comparingLong(Request::getReceiveTime)
+            .thenComparing(Comparator.reverseOrder()); // Earliest received first, ties in creation order
+
+    private final TreeSet<Request>[] classes; // Requests per priority class by receive time, index = score
+    private final long agingStepNanos; // Wait that raises the effective priority by one
+    private final long[] maxDelayNanos; // Maximum queueing delay per class, index = score
+    private int size; // Number of queued requests
+    private final WaiterStack<Request> waiters = new WaiterStack<>(); // Threads waiting for a request (only while the queue is empty)
+
+    /*
+        Constructor for the default policy, with the default maximum delays (see below)
+     */
+    public AgingRequestQueue(long agingStepMillis) {
+        this(PriorityPolicy.DEFAULT, agingStepMillis);
+    }
+
+    /*
+        Constructor for the default policy (see below)
+     */
+    public AgingRequestQueue(long agingStepMillis, long... maxDelayMillis) {
+        this(PriorityPolicy.DEFAULT, agingStepMillis, maxDelayMillis);
+    }
+
+    /*
+        Constructor
+        - The maximum delay of a class defaults to the time it takes to age up to the top class, plus one step
+
+        @param policy: The policy the server ranks requests with
+        @param agingStepMillis: Wait that raises the effective priority of a request by one
+     */
+    public AgingRequestQueue(PriorityPolicy policy, long agingStepMillis) {
+        this(policy, agingStepMillis, defaultMaxDelays(policy, agingStepMillis));
+    }
+
+    /*
+        Constructor
+        - One class per score of the policy
+
+        @param policy: The policy the server ranks requests with
+        @param agingStepMillis: Wait that raises the effective priority of a request by one
+        @param maxDelayMillis: Maximum queueing delay per class, lowest score first (the last value is used for
+                               any class not listed)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AgingRequestQueue(PriorityPolicy policy, long agingStepMillis, long... maxDelayMillis) {
+        if (agingStepMillis <= 0) throw new IllegalArgumentException("Aging step must be positive: " + agingStepMillis);
+        if (maxDelayMillis.length == 0) throw new IllegalArgumentException("At least one maximum delay is required");
+
+        classes = new TreeSet[policy.getMaxScore() + 1];
+        maxDelayNanos = new long[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new TreeSet<>(RECEIVE_ORDER);
+            maxDelayNanos[i] = maxDelayMillis[Math.min(i, maxDelayMillis.length - 1)] * 1_000_000;
+        }
+        this.agingStepNanos = agingStepMillis * 1_000_000;
+    }
+
+    private static long[] defaultMaxDelays(PriorityPolicy policy, long agingStepMillis) {
+        int maxScore = policy.getMaxScore();
+        long[] delays = new long[maxScore + 1];
+        for (int score = 0; score <= maxScore; score++) {
+            delays[score] = (maxScore - score + 1) * agingStepMillis;
+        }
+        return delays;
+    }
+
+    /*
+        Add a request to the queue
+        - Add the request to its priority class, in receive time order
+        - Hand it to a waiting thread (if any w/ take())
+
+        @param request: Request object to be added to the queue
+        Post-condition: The request is added to the queue
+     */
+    @Override
+    public synchronized void put(Request request) {
+        classes[score(request)].add(request);
+        size++;
+
+        handOff();
+    }
+
+    /*
+        Add several requests under one lock
+
+        @param requests: Requests to be added to the queue
+        Post-condition: Every request is added to the queue
+     */
+    @Override
+    public synchronized void putAll(Collection<? extends Request> requests) {
+        for (Request r : requests) {
+            classes[score(r)].add(r);
+            size++;
+        }
+        handOff();
+    }
+
+    /*
+        Hand the next requests to waiting threads, one each, newest waiter first (caller holds the monitor)
+     */
+    private void handOff() {
+        long now = System.nanoTime();
+        while (size > 0) {
+            WaiterStack.Node<Request> waiter = waiters.pop();
+            if (waiter == null) return;
+
+            Request r = removeNext(now);
+            if (!waiter.fulfill(r)) { // It timed out or was interrupted in the meantime: back to its class
+                classes[score(r)].add(r);
+                size++;
+            }
+        }
+    }
+
+    /*
+        Get the next request from the queue
+        - Wait until a request is handed over (if the queue is empty)
+        - Among the class heads, take the overdue one with the earliest deadline, or else the one with the highest
+          effective priority (ties go to the higher class)
+
+        @return: The next request from the queue. This method should block until a request is available. Return null if interrupted.
+     */
+    @Override
+    public Request take() {
+        return await(false, 0);
+    }
+
+    /*
+        Get the next request from the queue, waiting at most the timeout for one
+
+        @return: The next request, or null if the timeout passed or the thread was interrupted (the interrupt stays set)
+     */
+    @Override
+    public Request poll(long timeout, TimeUnit unit) {
+        return await(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /*
+        Take the next request, or park on the waiter stack until one is handed over
+     */
+    private Request await(boolean timed, long deadlineNanos) {
+        WaiterStack.Node<Request> node;
+        synchronized (this) {
+            if (size > 0) return removeNext(System.nanoTime());
+            if (timed && deadlineNanos - System.nanoTime() <= 0) return null;
+            node = waiters.push(); // Under the monitor, so the next put() sees it
+        }
+        return waiters.await(node, timed, deadlineNanos);
+    }
+
+    /*
+        Move up to max requests to out, in the order take() would return them (never blocks)
+        - The clock is read once, so the whole batch is ordered as of the same instant
+
+        @return: The number of requests moved
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super Request> out, int max) {
+        long now = System.nanoTime();
+        int count = 0;
+        for (; count < max && size > 0; count++) out.add(removeNext(now));
+        return count;
+    }
+
+    /*
+        Wait at most the timeout for a request, then take up to max requests in take() order
+        - A non-empty queue is drained under one lock; an empty one is waited on like poll()
+
+        @return: The requests taken, empty if the timeout passed. Return null if interrupted.
+     */
+    @Override
+    public List<Request> takeBatch(int max, long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (size > 0) {
+                List<Request> batch = new ArrayList<>(Math.min(max, size));
+                drainTo(batch, max);
+                return batch;
+            }
+        }
+        return RequestQueue.super.takeBatch(max, timeout, unit);
+    }
+
+    /*
+        Remove the next request of the (non-empty) queue as of now
+     */
+    private Request removeNext(long now) {
+        int best = -1;
+        long bestDeadline = Long.MAX_VALUE; // Deadline of the most overdue head
+        long bestEffective = Long.MIN_VALUE; // Effective priority of the best head, if none is overdue
+
+        for (int score = classes.length - 1; score >= 0; score--) {
+            if (classes[score].isEmpty()) continue;
+            Request head = classes[score].first();
+
+            long deadline = head.getReceiveTime() + maxDelayNanos[score];
+            if (deadline - now <= 0) {
+                if (bestDeadline == Long.MAX_VALUE || deadline - bestDeadline < 0) {
+                    best = score;
+                    bestDeadline = deadline;
+                }
+            } else if (bestDeadline == Long.MAX_VALUE) {
+                long effective = effective(head, score, now);
+                if (effective > bestEffective) { // Classes are scanned from the top, so ties go to the higher class
+                    best = score;
+                    bestEffective = effective;
+                }
+            }
+        }
+
+        size--;
+        return classes[best].pollFirst();
+    }
+
+    /*
+        Remove the lowest priority request
+        - The newest request of a class (its tail) has the lowest effective priority in it, so only the tails are
+          compared; ties go to the lower class
+
+        @return: The lowest priority request, or null if the queue is empty
+     */
+    @Override
+    public synchronized Request pollLowest() {
+        if (size == 0) return null;
+
+        long now = System.nanoTime();
+        int lowest = -1;
+        long lowestEffective = Long.MAX_VALUE;
+        for (int score = 0; score < classes.length; score++) {
+            if (classes[score].isEmpty()) continue;
+
+            long effective = effective(classes[score].last(), score, now);
+            if (effective < lowestEffective) {
+                lowest = score;
+                lowestEffective = effective;
+            }
+        }
+
+        size--;
+        return classes[lowest].pollLast();
+    }
+
+    @Override
+    public synchronized int size() { return size; }
+
+    /*
+        Get the sorted list of requests in the queue
+        - Copy the classes (the only step that holds the queue's lock)
+        - Sort the copy by effective priority right now, without blocking put() and take()
+        - Overdue requests are not singled out, so the order is the one take() follows while nothing is overdue
+
+        @return: A list of the queued requests, highest effective priority first
+     */
+    @Override
+    public List<Request> getQueue() {
+        List<Request> sorted = new ArrayList<>();
+        synchronized (this) {
+            for (TreeSet<Request> c : classes) sorted.addAll(c);
+        }
+
+        long now = System.nanoTime();
+        long[] effective = new long[sorted.size()];
+        Integer[] order = new Integer[sorted.size()];
+        for (int i = 0; i < order.length; i++) {
+            Request r = sorted.get(i);
+            effective[i] = effective(r, score(r), now);
+            order[i] = i;
+        }
+
+        Arrays.sort(order, Comparator.<Integer>comparingLong(i -> effective[i]).thenComparing(sorted::get).reversed());
+
+        List<Request> result = new ArrayList<>(order.length);
+        for (int i : order) result.add(sorted.get(i));
+        return result;
+    }
+
+    /*
+        Effective priority of a request: its score plus one per aging step waited
+     */
+    private long effective(Request request, int score, long now) {
+        return score + Math.max(0, now - request.getReceiveTime()) / agingStepNanos;
+    }
+
+    /*
+        Priority class of a request (the index of its class)
+     */
+    private int score(Request request) {
+        return Math.min(classes.length - 1, PriorityPolicy.score(request.getPriority()));
+    }
+}
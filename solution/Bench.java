@@ -0,0 +1,53 @@
+/*
+    Bench
+    - Minimal benchmark harness for the hot paths (the project has no build tool to pull in JMH)
+    - Runs warmup iterations first so the JIT has compiled the measured code, then the timed iterations
+    - Prints the mean and best time per operation over the timed iterations
+    - Measured code should hand its results to Bench.sink, so the JIT cannot remove the work as dead code
+ */
+public final class Bench {
+    public static volatile Object sink; // Results of the measured code end up here
+
+    /*
+        One iteration of a benchmark
+        - Performs a batch of operations and returns how many it performed
+     */
+    public interface Iteration {
+        long run() throws Exception;
+    }
+
+    private Bench() {}
+
+    /*
+        Run a benchmark and print its result
+
+        @param name: Label printed next to the result
+        @param warmups: Untimed iterations to run first
+        @param iterations: Timed iterations
+        @param iteration: The work of one iteration
+        @return: Mean time per operation in nanoseconds
+     */
+    public static double run(String name, int warmups, int iterations, Iteration iteration) {
+        try {
+            for (int i = 0; i < warmups; i++) {
+                iteration.run();
+            }
+
+            double total = 0, best = Double.MAX_VALUE;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                long ops = iteration.run();
+                double nanosPerOp = (double) (System.nanoTime() - start) / Math.max(1, ops);
+
+                total += nanosPerOp;
+                best = Math.min(best, nanosPerOp);
+            }
+
+            double mean = total / iterations;
+            System.out.printf("%-52s %12.1f ns/op  (best %.1f)%n", name, mean, best);
+            return mean;
+        } catch (Exception e) {
+            throw new RuntimeException(name, e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Bounded Request Queue
+    - Caps the number of requests in another RequestQueue, so overload cannot grow the queue until memory runs out
+    - What happens when the queue is full depends on the shedding policy:
+        - REJECT: the new request is answered with a 503 and its connection is closed
+        - EVICT_LOWEST: the lowest priority queued request is shed instead, if the new request outranks it
+          (otherwise the new request is rejected)
+        - BACKPRESSURE: nothing is shed; the acceptor stops accepting connections until the queue drains below
+          its capacity. A connection has at most one request in the queue (see Connection), so the queue can only
+          grow past the capacity by the connections that were already open
+    - Shed requests get a precomputed 503 response ("Connection: close") and their connection is closed, which
+      also drops whatever they had pipelined behind them
+    - Every decision is counted (see getRejected(), getEvicted() and getBackpressurePauses())
+
+    Sample:
+        config.setRequestQueue(new BoundedRequestQueue(new HeapRequestQueue(), 10_000, SheddingPolicy.EVICT_LOWEST));
+ */
+public class BoundedRequestQueue implements RequestQueue {
+    public enum SheddingPolicy { REJECT, EVICT_LOWEST, BACKPRESSURE }
+
+    private static final StaticResponse OVERLOADED = new StaticResponse("503 Service Unavailable", "text/html",
+            "<html><body><h1>503 Service Unavailable</h1><p>The server is overloaded, please try again later.</p></body></html>");
+
+    private final RequestQueue queue; // Queue holding the admitted requests
+    private final int capacity; // Most requests admitted at once
+    private final SheddingPolicy policy; // What to do once the queue is full
+    private RequestQueue owner = this; // Outermost queue around this one, shed requests are completed through it
+
+    private final AtomicLong rejected = new AtomicLong(); // New requests answered with a 503
+    private final AtomicLong evicted = new AtomicLong(); // Queued requests shed for a higher priority one
+    private final AtomicLong backpressurePauses = new AtomicLong(); // Times the acceptor was told to stop accepting
+    private final AtomicBoolean saturated = new AtomicBoolean(); // Result of the last isSaturated()
+
+    /*
+        Constructor
+
+        @param queue: Queue to bound (it is only accessed through this queue from now on)
+        @param capacity: Most requests admitted at once
+        @param policy: What to do once the queue is full
+     */
+    @SuppressWarnings("this-escape") // Only the wrapped queue sees it, and only stores it as its owner
+    public BoundedRequestQueue(RequestQueue queue, int capacity, SheddingPolicy policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+        this.queue = queue;
+        this.capacity = capacity;
+        this.policy = policy;
+        queue.setOwner(this);
+    }
+
+    /*
+        Add a request to the queue, or shed a request if it is full
+        - Admission is decided under the queue's monitor, so concurrent puts cannot overshoot the capacity
+          (take() is not synchronized, it can only make room)
+        - The shed request is answered after the monitor is released, so a slow client cannot hold up other puts
+
+        @param request: Request object to be added to the queue
+        Post-condition: The request is added to the queue, or exactly one request was rejected or evicted
+     */
+    @Override
+    public void put(Request request) {
+        Request shed = null;
+
+        synchronized (this) {
+            if (policy == SheddingPolicy.BACKPRESSURE || queue.size() < capacity) {
+                queue.put(request);
+            } else if (policy == SheddingPolicy.EVICT_LOWEST) {
+                Request lowest = queue.pollLowest();
+                if (lowest != null && lowest.compareTo(request) < 0) {
+                    queue.put(request);
+                    shed = lowest;
+                    evicted.incrementAndGet();
+                } else {
+                    if (lowest != null) queue.put(lowest);
+                    shed = request;
+                    rejected.incrementAndGet();
+                }
+            } else {
+                shed = request;
+                rejected.incrementAndGet();
+            }
+        }
+
+        if (shed != null) {
+            shed.reject(OVERLOADED);
+            owner.complete(shed); // Evicted, or rejected after a wrapper around this queue (a journal) took it in
+        }
+    }
+
+    /*
+        Add several requests at once
+        - If they all fit (or nothing is ever shed) they are handed to the wrapped queue's putAll() in one go,
+          otherwise each one is admitted like put()
+     */
+    @Override
+    public void putAll(Collection<? extends Request> requests) {
+        synchronized (this) {
+            if (policy == SheddingPolicy.BACKPRESSURE || queue.size() + requests.size() <= capacity) {
+                queue.putAll(requests);
+                return;
+            }
+        }
+        for (Request r : requests) put(r);
+    }
+
+    @Override
+    public Request take() { return queue.take(); }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) { return queue.poll(timeout, unit); }
+
+    @Override
+    public int drainTo(Collection<? super Request> out, int max) { return queue.drainTo(out, max); }
+
+    @Override
+    public List<Request> takeBatch(int max, long timeout, TimeUnit unit) { return queue.takeBatch(max, timeout, unit); }
+
+    @Override
+    public Request pollLowest() { return queue.pollLowest(); }
+
+    @Override
+    public int size() { return queue.size(); }
+
+    /*
+        Whether the acceptor should pause accepting (BACKPRESSURE only)
+        - Counts a pause every time the queue goes from below to at its capacity
+     */
+    @Override
+    public boolean isSaturated() {
+        boolean full = policy == SheddingPolicy.BACKPRESSURE && queue.size() >= capacity;
+        if (full && saturated.compareAndSet(false, true)) backpressurePauses.incrementAndGet();
+        else if (!full) saturated.set(false);
+        return full;
+    }
+
+    @Override
+    public List<Request> getQueue() { return queue.getQueue(); }
+
+    @Override
+    public void complete(Request request) { queue.complete(request); }
+
+    @Override
+    public void setOwner(RequestQueue owner) {
+        this.owner = owner;
+        queue.setOwner(owner);
+    }
+
+    @Override
+    public void close() { queue.close(); }
+
+    // Getters
+    public RequestQueue getDelegate() { return queue; }
+    public int getCapacity() { return capacity; }
+    public SheddingPolicy getPolicy() { return policy; }
+    public long getRejected() { return rejected.get(); }
+    public long getEvicted() { return evicted.get(); }
+    public long getBackpressurePauses() { return backpressurePauses.get(); }
+}
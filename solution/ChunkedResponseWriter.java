@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Chunked Response Writer
+    - Streams a response body with "Transfer-Encoding: chunked", so a handler can write a body of any size without
+      building it in memory first (get one with Request.stream())
+    - Text is UTF-8 encoded straight into a direct buffer. Whenever the buffer is full it is sent as one chunk, so
+      a response needs the same memory whether it is 1 KB or 100 MB
+    - The head goes out with the first chunk, and the last chunk with the terminating zero-size chunk (a small
+      response is still a single write)
+    - Buffers come from a shared pool (like the Connection read buffers), so they are reused by every worker,
+      platform or virtual, and never allocated per response once the pool is warm
+    - Not thread-safe: one writer belongs to the one worker answering its request
+
+    Sample:
+        try (ChunkedResponseWriter out = stream("200 OK", "text/html")) {
+            out.append("<html><body>");
+            for (Request r : requests) out.append("<li>").append(r.path).append("</li>");
+            out.append("</body></html>");
+            out.finish();
+        }
+ */
+public final class ChunkedResponseWriter implements Appendable, AutoCloseable {
+    private static final int CHUNK_SIZE = 16 * 1024; // Most body bytes per chunk
+    private static final int SIZE_LINE = 6; // Room for the chunk size line before the data: up to 4 hex digits + CRLF
+    private static final byte[] LAST_CHUNK = "\r\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1); // Ends the last chunk, then the zero-size one
+    private static final int MAX_POOLED_BUFFERS = 256; // Most idle chunk buffers kept for reuse
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>(); // Idle chunk buffers
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    private final Request request; // Request being answered
+    private ByteBuffer head; // Response head, until it is written with the first chunk
+    private ByteBuffer buffer; // Size line room + data + LAST_CHUNK room, null once closed
+    private boolean finished;
+
+    /*
+        Constructor (see Request.stream())
+
+        @param request: Request being answered
+        @param head: Encoded response head (with "Transfer-Encoding: chunked")
+     */
+    ChunkedResponseWriter(Request request, ByteBuffer head) {
+        this.request = request;
+        this.head = head;
+
+        ByteBuffer pooled = bufferPool.poll();
+        if (pooled != null) pooledBuffers.decrementAndGet();
+        this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(SIZE_LINE + CHUNK_SIZE + LAST_CHUNK.length);
+        this.buffer.clear().position(SIZE_LINE);
+    }
+
+    /*
+        Append text to the body
+        - Encodes it as UTF-8 (ASCII takes the fast path), sending a chunk whenever the buffer fills up
+     */
+    @Override
+    public ChunkedResponseWriter append(CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (room() < 1) flush();
+                buffer.put((byte) c);
+                continue;
+            }
+
+            if (room() < 4) flush();
+            if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?'); // Unpaired surrogate
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public ChunkedResponseWriter append(CharSequence text, int start, int end) throws IOException {
+        return append(text.subSequence(start, end));
+    }
+
+    @Override
+    public ChunkedResponseWriter append(char c) throws IOException {
+        return append(String.valueOf(c));
+    }
+
+    /*
+        Append a number in decimal, without creating a String
+     */
+    public ChunkedResponseWriter append(long value) throws IOException {
+        if (room() < 20) flush();
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) return append(Long.toString(value));
+            buffer.put((byte) '-');
+            value = -value;
+        }
+
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) { // Digits were written backwards
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j)).put(j, b);
+        }
+        return this;
+    }
+
+    /*
+        Send what is buffered as one chunk (with the head, if it has not been sent yet)
+     */
+    public void flush() throws IOException {
+        if (buffer.position() == SIZE_LINE) return; // Nothing to send (a zero-size chunk would end the body)
+
+        buffer.put((byte) '\r').put((byte) '\n');
+        send(sizeLine(buffer.position() - SIZE_LINE - 2));
+        buffer.clear().position(SIZE_LINE);
+    }
+
+    /*
+        Send the rest of the body and the terminating chunk, then finish the request
+        - The connection is kept alive or closed as decided when the head was encoded
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+
+        int size = buffer.position() - SIZE_LINE;
+        if (size == 0) {
+            buffer.position(SIZE_LINE + 2).put(LAST_CHUNK, 2, LAST_CHUNK.length - 2); // Only the zero-size chunk
+            send(SIZE_LINE + 2);
+        } else {
+            buffer.put(LAST_CHUNK);
+            send(sizeLine(size));
+        }
+
+        finished = true;
+        request.finish();
+    }
+
+    /*
+        Write the size line of a chunk of the given size in front of its data
+
+        @return: Where the chunk starts in the buffer
+     */
+    private int sizeLine(int size) {
+        int start = SIZE_LINE - 2;
+        buffer.put(start, (byte) '\r').put(start + 1, (byte) '\n');
+        do {
+            buffer.put(--start, (byte) Character.forDigit(size & 0xF, 16));
+            size >>>= 4;
+        } while (size > 0);
+        return start;
+    }
+
+    /*
+        Write the buffer from start (and the head before it, the first time)
+     */
+    private void send(int start) throws IOException {
+        ByteBuffer chunk = buffer.flip().position(start);
+        if (head != null) {
+            request.write(head, chunk);
+            head = null;
+        } else {
+            request.write(chunk);
+        }
+    }
+
+    private int room() {
+        return buffer.capacity() - LAST_CHUNK.length - buffer.position();
+    }
+
+    /*
+        Give the buffer back to the pool
+        - Does not finish the request: a writer closed before finish() (the handler failed) leaves the request to
+          be aborted by the handler
+     */
+    @Override
+    public void close() {
+        if (buffer == null) return;
+
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) bufferPool.offer(buffer);
+        else pooledBuffers.decrementAndGet();
+        buffer = null;
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Connection
+    - A persistent (HTTP/1.1 keep-alive) client connection, owned by the SelectorAcceptor
+    - The channel stays in non-blocking mode for its whole life:
+        - The acceptor reads and parses every pipelined request head from it
+        - A worker writes the response of the one request that is in flight, as far as the socket takes it. What the
+          socket does not take is copied to the connection's output, and the acceptor writes it out once the
+          channel is writable (OP_WRITE), so a slow reader holds neither a worker nor a CPU. Only a response
+          outgrowing MAX_OUTPUT_BYTES of copies makes its worker wait (on the connection's monitor) until the client reads
+    - The response is complete once its output is written: only then is the connection closed or its next
+      pipelined request queued
+    - Only one request per connection is in the RequestQueue at a time. Requests parsed while one is in flight wait
+      in the connection, and the next one is queued when the response is complete. That keeps responses in request
+      order on the connection, even though the queue reorders requests across connections
+    - The connection closes after a response when
+        - the client sent "Connection: close"
+        - it served maxRequests requests
+        - the client closed its side and nothing else is pending
+        - the server is draining (see drain())
+    - The acceptor's sweep closes a connection (see isExpired())
+        - idle for longer than the keep-alive timeout
+        - whose request head is still incomplete HEAD_TIMEOUT_NANOS after its first byte (a client trickling a head
+          byte by byte refreshes every other timer)
+        - whose client read nothing of the pending output for WRITE_TIMEOUT_NANOS
+    - All state is guarded by the connection's monitor (the acceptor thread and a worker both touch it)
+ */
+public class Connection {
+    private static final int BUFFER_SIZE = 8192; // Read buffer size, and so the largest request head we accept
+    private static final int MAX_PENDING = 32; // Most pipelined requests waiting behind the one in flight
+    private static final int MAX_POOLED_BUFFERS = 1024; // Most idle read buffers kept for reuse
+    private static final int MAX_OUTPUT_BYTES = 256 * 1024; // Most unwritten response bytes kept before the worker waits
+    private static final long WRITE_TIMEOUT_NANOS = 30_000_000_000L; // Give up on a client that reads nothing for this long
+    private static final long HEAD_TIMEOUT_NANOS = 10_000_000_000L; // Longest time from the first byte of a head to its end
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>(); // Idle read buffers
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    private final SocketChannel channel; // Non-blocking channel to the client
+    private final RequestQueue requestQueue; // Queue the requests of this connection go to
+    private final int maxRequests; // Requests served before the connection is closed
+    private final RateLimiter rateLimiter; // Checked for every parsed request (null for none)
+    private ByteBuffer buffer; // Received bytes not parsed yet (write mode), null once closed
+    private SelectionKey key; // Key of the channel in the acceptor's selector (see register())
+    private AtomicInteger writing; // The acceptor's count of connections with pending output (see register())
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>(); // Response bytes the socket did not take yet, in order
+    private int outputBytes; // Copied bytes left in output (read-only buffers in it are shared, not copied)
+
+    private Request inFlight; // Request that is queued or being processed
+    private final ArrayDeque<Request> pending = new ArrayDeque<>(); // Pipelined requests waiting behind inFlight
+    private int served; // Responses completed so far
+    private boolean closeAfterResponse; // Decided when the in-flight response head is written
+    private boolean completing; // The response is complete once output is written (see complete())
+    private boolean inputClosed; // The client closed its side of the connection
+    private boolean draining; // The server is shutting down: finish the request in flight, then close
+    private boolean closed;
+    private volatile long lastActive = System.nanoTime(); // Last read or completed response (for the idle timeout)
+    private boolean headPending; // The buffer holds the start of a head
+    private long headStart; // When the first byte of that head was read (for the head timeout)
+    private long lastWritten; // When the client last took some of the output (for the write timeout)
+
+    public Connection(SocketChannel channel, RequestQueue requestQueue, int maxRequests) {
+        this(channel, requestQueue, maxRequests, null);
+    }
+
+    /*
+        Constructor
+
+        @param channel: Non-blocking channel to the client
+        @param requestQueue: Queue the requests of this connection go to
+        @param maxRequests: Requests served before the connection is closed
+        @param rateLimiter: Rate limit every parsed request is checked against (null for none)
+     */
+    public Connection(SocketChannel channel, RequestQueue requestQueue, int maxRequests, RateLimiter rateLimiter) {
+        this.channel = channel;
+        this.requestQueue = requestQueue;
+        this.maxRequests = maxRequests;
+        this.rateLimiter = rateLimiter;
+
+        ByteBuffer pooled = bufferPool.poll();
+        if (pooled != null) pooledBuffers.decrementAndGet();
+        this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /*
+        Register the channel with the acceptor's selector, for reading (acceptor thread)
+        - Must happen before any request of the connection is processed: pending output is written by the selector
+
+        @param selector: The acceptor's selector
+        @param writing: Counts the acceptor's connections with pending output, while this one has some
+     */
+    public synchronized void register(Selector selector, AtomicInteger writing) throws IOException {
+        this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        this.writing = writing;
+    }
+
+    /*
+        Read and parse whatever the client sent (acceptor thread)
+        - Every complete head is parsed and either becomes the in-flight request, which is added to parsed for the
+          acceptor to queue, or, if a request is in flight already, kept as pending
+        - A request over its client's rate (see RateLimiter) is answered with a 429 and the connection is closed. If
+          another request is in flight, its response goes first and the connection closes after it (a 429 written
+          now would be taken for that response)
+        - Incomplete bytes stay in the buffer for the next read
+
+        @param parser: The acceptor's parser
+        @param parsed: Where the new in-flight request goes (queued by the acceptor with the others of its pass)
+        @return: false if the connection should stop being read from (closed, or the client closed its side)
+     */
+    public synchronized boolean read(RequestParser parser, List<Request> parsed) {
+        if (closed) return false;
+
+        try {
+            int n = channel.read(buffer);
+            long now = System.nanoTime();
+            lastActive = now;
+
+            boolean parsedHead = false;
+            buffer.flip();
+            while (RequestParser.headEnd(buffer) >= 0) {
+                parsedHead = true;
+                Request r = parser.parse(buffer, channel.socket());
+                if (r == null || pending.size() == MAX_PENDING) { // Invalid head, or a client flooding the pipeline
+                    close();
+                    return false;
+                }
+
+                r.connection = this;
+                if (rateLimiter != null && !rateLimiter.tryAcquire(r)) {
+                    if (inFlight == null) r.reject(RateLimiter.TOO_MANY_REQUESTS);
+                    else drain(); // Answer the request in flight, drop the pipeline behind it, then close
+                    return false;
+                }
+
+                if (inFlight == null) {
+                    inFlight = r;
+                    parsed.add(r); // Queued by the acceptor
+                } else {
+                    pending.add(r);
+                }
+            }
+            buffer.compact();
+
+            if (buffer.position() == 0) {
+                headPending = false;
+            } else if (!headPending || parsedHead) { // The first bytes of a new head
+                headPending = true;
+                headStart = now;
+            }
+
+            if (!buffer.hasRemaining()) { // Head does not fit in the buffer
+                close();
+                return false;
+            }
+
+            if (n < 0) {
+                inputClosed = true;
+                if (inFlight == null) close();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    /*
+        Decide whether the connection stays open after the response to request (worker thread)
+        - Called once per response, when its head is written
+
+        @return: true to answer with "Connection: keep-alive", false for "Connection: close"
+     */
+    public synchronized boolean keepAlive(Request request) {
+        closeAfterResponse = closed
+                || served + 1 >= maxRequests
+                || "close".equalsIgnoreCase(request.getHeaders().get("Connection"))
+                || (inputClosed && pending.isEmpty())
+                || draining;
+        return !closeAfterResponse;
+    }
+
+    /*
+        Write the buffers, or keep what the socket does not take for the acceptor to write (worker thread)
+        - Written straight to the channel when no output is pending, otherwise appended behind it
+        - The rest is kept for the acceptor, which is asked for OP_WRITE: copied (callers may reuse their buffers),
+          except read-only buffers, which are shared and never change (StaticResponse)
+        - Waits while more than MAX_OUTPUT_BYTES are copied and pending, until the client reads or the connection
+          is closed (the acceptor's sweep closes it after the write timeout)
+     */
+    public synchronized void write(ByteBuffer... buffers) throws IOException {
+        if (closed) throw new IOException("Connection closed");
+        if (output.isEmpty()) channel.write(buffers);
+        if (!hasRemaining(buffers)) return;
+
+        if (output.isEmpty()) {
+            lastWritten = System.nanoTime();
+            if (key != null) {
+                writing.incrementAndGet();
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+            }
+        }
+        for (ByteBuffer b : buffers) {
+            if (!b.hasRemaining()) continue;
+            if (b.isReadOnly()) { // Shared and never changed (a StaticResponse): kept as it is
+                output.addLast(b);
+            } else {
+                outputBytes += b.remaining();
+                output.addLast(ByteBuffer.allocate(b.remaining()).put(b).flip());
+            }
+        }
+
+        try {
+            while (outputBytes > MAX_OUTPUT_BYTES && !closed) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the client was reading");
+        }
+        if (closed) throw new IOException("Connection closed");
+    }
+
+    /*
+        Write pending output now that the channel is writable (acceptor thread)
+        - Stops asking for OP_WRITE once all of it is written, and finishes a response that was completed meanwhile
+
+        @param parsed: Where the next pipelined request goes, if the finished response lets one go (queued by the acceptor)
+     */
+    public synchronized void flush(List<Request> parsed) {
+        if (closed) return;
+
+        try {
+            while (!output.isEmpty()) {
+                ByteBuffer b = output.peekFirst();
+                int n = channel.write(b);
+                if (n > 0) {
+                    if (!b.isReadOnly()) outputBytes -= n;
+                    lastWritten = System.nanoTime();
+                }
+                if (b.hasRemaining()) break;
+                output.pollFirst();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        notifyAll(); // A worker may wait for room
+
+        if (!output.isEmpty()) return;
+        writing.decrementAndGet();
+        key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        if (completing) {
+            completing = false;
+            Request next = finishResponse();
+            if (next != null) parsed.add(next);
+        }
+    }
+
+    /*
+        Write as much of the buffers as the socket takes right now, without waiting (any thread)
+        - For short responses sent from the acceptor thread, e.g. a 503 when load is shed
+     */
+    public void writeNow(ByteBuffer... buffers) throws IOException {
+        channel.write(buffers);
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer b : buffers) {
+            if (b.hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    /*
+        The response to the in-flight request is written (worker thread)
+        - With output still pending, the acceptor finishes the response once it is written (see flush())
+        - Otherwise finishes it right away
+     */
+    public void complete() {
+        Request next;
+        synchronized (this) {
+            served++;
+            if (!output.isEmpty() && !closed) {
+                completing = true;
+                return;
+            }
+            next = finishResponse();
+        }
+
+        if (next != null) requestQueue.put(next);
+    }
+
+    /*
+        Finish the response to the in-flight request, once all of it is written
+        - Closes the connection if keepAlive() decided so
+        - Otherwise the next pipelined request (if any) becomes the one in flight
+
+        @return: That request, for the caller to queue (outside the monitor), or null
+     */
+    private Request finishResponse() {
+        lastActive = System.nanoTime();
+        if (closeAfterResponse || closed || draining) {
+            close();
+            return null;
+        }
+        return inFlight = pending.poll();
+    }
+
+    /*
+        Start closing the connection for a shutdown (acceptor thread)
+        - An idle connection is closed right away
+        - Otherwise the request in flight is still answered (with "Connection: close" if its head is not written yet),
+          then the connection closes. Pipelined requests behind it are dropped unanswered, which HTTP clients retry
+     */
+    public synchronized void drain() {
+        draining = true;
+        pending.clear();
+        if (inFlight == null) close();
+    }
+
+    /*
+        Whether the acceptor's sweep should close the connection
+        - Output is pending and the client read none of it for the write timeout
+        - Nothing is in flight and either a head has been arriving for longer than the head timeout, or the
+          connection sat idle longer than the keep-alive timeout
+     */
+    public synchronized boolean isExpired(long now, long idleTimeoutNanos) {
+        if (!output.isEmpty()) return now - lastWritten > WRITE_TIMEOUT_NANOS;
+        if (inFlight != null) return false;
+        if (headPending && now - headStart > HEAD_TIMEOUT_NANOS) return true;
+        return now - lastActive > idleTimeoutNanos;
+    }
+
+    /*
+        Close the connection
+        - Pending requests and output are dropped, a worker waiting to write gives up, and the read buffer goes back
+          to the pool
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+
+        pending.clear();
+        if (!output.isEmpty() && key != null) writing.decrementAndGet();
+        output.clear();
+        outputBytes = 0;
+        notifyAll();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+
+        buffer.clear();
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) bufferPool.offer(buffer);
+        else pooledBuffers.decrementAndGet();
+        buffer = null;
+    }
+
+    public synchronized boolean isClosed() { return closed; }
+
+    public synchronized boolean isInputClosed() { return inputClosed; }
+
+    public SocketChannel getChannel() { return channel; }
+}
@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Deadline Request Queue
+    - Keeps workers from spending their time on requests nobody is waiting for anymore
+    - Every priority class (score of the PriorityPolicy) has a deadline, measured from the request's receiveTime
+    - take() checks each request it gets from the wrapped queue, and skips it if
+        - its client disconnected: the connection was closed (reset, timed out, shed) while the request waited. The
+          acceptor already notices a reset while it watches the connection for pipelined requests, so the check is
+          reading a flag, not a system call. The connection is closed without a response (like a "499 client closed
+          request" in other servers). A client that only closed its side (half-close) is still answered, like
+          Connection does
+        - its client closed its side, if setInputClosedDisconnects(true) was called. A full close() and a half-close
+          send the same FIN, and nothing tells them apart before a response is written (a client that closed fully
+          answers it with a reset). Off by default, so half-closing clients are served; browsers and most HTTP
+          clients never half-close, so behind them it is better turned on, and requests of clients that went away
+          are skipped instead of being processed for nobody
+        - it is past its deadline: it is answered with a 503 right away instead of being processed late
+    - poll(), drainTo() and takeBatch() check their requests the same way (a batch comes back without the dead ones)
+    - Only the requests take() actually returns are checked, so a dead request costs one check when it reaches the
+      head of the queue, and the queue is never scanned. Until then it still counts in size()
+    - Skipped requests are counted (see getExpired() and getDisconnected())
+
+    - The deadlines are sized for the policy given to the constructor, which must be the one the server ranks
+      requests with (scores above its maximum use the last deadline)
+
+    Sample:
+        // With the default policy: anonymous Index Requests may wait 2s, every other class 10s
+        config.setRequestQueue(new DeadlineRequestQueue(new HeapRequestQueue(), 2_000, 10_000));
+        // Clients never half-close: skip the requests of those that closed their side
+        config.setRequestQueue(new DeadlineRequestQueue(new HeapRequestQueue(), 2_000, 10_000).setInputClosedDisconnects(true));
+ */
+public class DeadlineRequestQueue implements RequestQueue {
+    private static final StaticResponse EXPIRED = new StaticResponse("503 Service Unavailable", "text/html",
+            "<html><body><h1>503 Service Unavailable</h1><p>The request waited too long, please try again later.</p></body></html>");
+
+    private final RequestQueue queue; // Queue holding the requests
+    private final long[] deadlineNanos; // Deadline per class, index = score (Long.MAX_VALUE for none)
+    private RequestQueue owner = this; // Outermost queue around this one, skipped requests are completed through it
+    private volatile boolean inputClosedDisconnects; // A client that closed its side counts as disconnected
+
+    private final AtomicLong expired = new AtomicLong(); // Requests answered with a 503 because they waited too long
+    private final AtomicLong disconnected = new AtomicLong(); // Requests dropped because their client was gone
+
+    /*
+        Constructor for the default policy (see below)
+     */
+    public DeadlineRequestQueue(RequestQueue queue, long... deadlineMillis) {
+        this(queue, PriorityPolicy.DEFAULT, deadlineMillis);
+    }
+
+    /*
+        Constructor
+        - One deadline per score of the policy
+
+        @param queue: Queue to wrap (it is only accessed through this queue from now on)
+        @param policy: The policy the server ranks requests with
+        @param deadlineMillis: Deadline per class, lowest score first, 0 for none (the last value is used for any
+                               class not listed)
+     */
+    @SuppressWarnings("this-escape") // Only the wrapped queue sees it, and only stores it as its owner
+    public DeadlineRequestQueue(RequestQueue queue, PriorityPolicy policy, long... deadlineMillis) {
+        if (deadlineMillis.length == 0) throw new IllegalArgumentException("At least one deadline is required");
+
+        this.queue = queue;
+        queue.setOwner(this);
+        this.deadlineNanos = new long[policy.getMaxScore() + 1];
+        for (int i = 0; i < deadlineNanos.length; i++) {
+            long millis = deadlineMillis[Math.min(i, deadlineMillis.length - 1)];
+            if (millis < 0) throw new IllegalArgumentException("Deadline must not be negative: " + millis);
+            deadlineNanos[i] = millis == 0 ? Long.MAX_VALUE : millis * 1_000_000;
+        }
+    }
+
+    /*
+        Set whether a client that closed its side (full close or half-close, see above) counts as disconnected
+
+        @return: The queue, so it can be passed on directly
+     */
+    public DeadlineRequestQueue setInputClosedDisconnects(boolean inputClosedDisconnects) {
+        this.inputClosedDisconnects = inputClosedDisconnects;
+        return this;
+    }
+
+    @Override
+    public void put(Request request) { queue.put(request); }
+
+    @Override
+    public void putAll(Collection<? extends Request> requests) { queue.putAll(requests); }
+
+    /*
+        Get the next request from the queue whose client is still there and whose deadline has not passed
+        - Disconnected requests are dropped, expired ones are answered with a 503, then the next one is taken
+
+        @return: The next live request from the queue. Return null if interrupted.
+     */
+    @Override
+    public Request take() {
+        while (true) {
+            Request r = queue.take();
+            if (r == null || isLive(r)) return r;
+        }
+    }
+
+    /*
+        Get the next live request from the queue, waiting at most the timeout for one
+
+        @return: The next live request, or null if the timeout passed or the thread was interrupted (the interrupt stays set)
+     */
+    @Override
+    public Request poll(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            Request r = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (r == null || isLive(r)) return r;
+        }
+    }
+
+    /*
+        Move up to max live requests to out, highest first (never blocks)
+        - Dead requests drained from the wrapped queue do not count, so fewer than max may be moved even though
+          the wrapped queue still has some
+
+        @return: The number of requests moved
+     */
+    @Override
+    public int drainTo(Collection<? super Request> out, int max) {
+        List<Request> drained = new ArrayList<>(Math.min(max, 16));
+        queue.drainTo(drained, max);
+
+        int count = 0;
+        for (Request r : drained) {
+            if (isLive(r)) {
+                out.add(r);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+        Wait at most the timeout for a live request, then take up to max requests, highest first
+        - Takes a batch from the wrapped queue and removes the dead requests from it; if none was live, waits for
+          the next batch (until the timeout)
+
+        @return: The live requests taken, empty if the timeout passed. Return null if interrupted.
+     */
+    @Override
+    public List<Request> takeBatch(int max, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            List<Request> batch = queue.takeBatch(max, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (batch == null || batch.isEmpty()) return batch;
+
+            List<Request> live = new ArrayList<>(batch.size());
+            for (Request r : batch) {
+                if (isLive(r)) live.add(r);
+            }
+            if (!live.isEmpty() || deadline - System.nanoTime() <= 0) return live;
+        }
+    }
+
+    /*
+        Check a request taken from the wrapped queue
+        - A disconnected request is dropped, an expired one is answered with a 503; both are completed
+
+        @return: Whether the request should be processed
+     */
+    private boolean isLive(Request r) {
+        if (r.isDisconnected() || (inputClosedDisconnects && r.isInputClosed())) {
+            disconnected.incrementAndGet();
+            r.abort();
+        } else if (System.nanoTime() - r.getReceiveTime() > deadlineNanos[Math.min(score(r), deadlineNanos.length - 1)]) {
+            expired.incrementAndGet();
+            r.reject(EXPIRED);
+        } else {
+            return true;
+        }
+        owner.complete(r);
+        return false;
+    }
+
+    private static int score(Request request) {
+        return PriorityPolicy.score(request.getPriority());
+    }
+
+    @Override
+    public Request pollLowest() { return queue.pollLowest(); }
+
+    @Override
+    public int size() { return queue.size(); }
+
+    @Override
+    public boolean isSaturated() { return queue.isSaturated(); }
+
+    @Override
+    public List<Request> getQueue() { return queue.getQueue(); }
+
+    @Override
+    public void complete(Request request) { queue.complete(request); }
+
+    @Override
+    public void setOwner(RequestQueue owner) {
+        this.owner = owner;
+        queue.setOwner(owner);
+    }
+
+    @Override
+    public void close() { queue.close(); }
+
+    // Getters
+    public RequestQueue getDelegate() { return queue; }
+    public long getDeadlineMillis(int score) { return deadlineNanos[score] == Long.MAX_VALUE ? 0 : deadlineNanos[score] / 1_000_000; }
+    public long getExpired() { return expired.get(); }
+    public long getDisconnected() { return disconnected.get(); }
+    public boolean isInputClosedDisconnects() { return inputClosedDisconnects; }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/*
+    Dispatcher Benchmark
+    - Compares the queue every worker shares (HeapRequestQueue, LaneRequestQueue) with the WorkStealingRequestQueue
+      as the number of workers grows from 4 to 64
+    - Throughput: one producer (like the acceptor) puts requests while N workers take them and spin for WORK_NANOS
+      each, a stand-in for processing a small request. The per-operation time is wall time divided by the requests
+    - Order: one worker per local queue drains a shuffled queue, and the rank of every taken request among the ones
+      still queued is recorded (0 = the highest priority request, so an exact priority queue always scores 0)
+    - Scaling depends on the cores of the machine; with fewer cores than workers the workers time-share them
+
+    Usage: java DispatcherBenchmark
+ */
+public class DispatcherBenchmark {
+    private static final int REQUESTS = 100_000; // Requests moved through the queue per iteration
+    private static final long WORK_NANOS = 1_000; // Simulated processing time per request
+
+    private static final Map<String, IntFunction<RequestQueue>> QUEUES = Map.of(
+            "Heap", workers -> new HeapRequestQueue(),
+            "Lane", workers -> new LaneRequestQueue(),
+            "WorkStealing", WorkStealingRequestQueue::new
+    );
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+
+        System.out.println("------------- Throughput (1 producer, N workers) -------------");
+        for (int workers : new int[] { 4, 8, 16, 32, 64 }) {
+            for (String name : List.of("Heap", "Lane", "WorkStealing")) {
+                benchmarkWorkers(name, workers);
+            }
+        }
+
+        System.out.println("------------- Priority order (mean / max rank of the taken request) -------------");
+        for (int queues : new int[] { 1, 4, 16, 64 }) {
+            measureRankError(queues);
+        }
+    }
+
+    private static void benchmarkWorkers(String name, int workers) {
+        List<Request> requests = requests(REQUESTS);
+
+        Bench.run(name + " " + workers + " workers", 2, 5, () -> {
+            RequestQueue queue = QUEUES.get(name).apply(workers);
+            AtomicLong taken = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(workers + 1);
+
+            List<Thread> threads = new ArrayList<>();
+            threads.add(new Thread(() -> {
+                for (Request r : requests) queue.put(r);
+                done.countDown();
+            }));
+            for (int w = 0; w < workers; w++) {
+                threads.add(new Thread(() -> {
+                    while (taken.getAndIncrement() < REQUESTS) {
+                        Bench.sink = queue.take();
+                        long end = System.nanoTime() + WORK_NANOS;
+                        while (System.nanoTime() < end) Thread.onSpinWait();
+                    }
+                    done.countDown();
+                }));
+            }
+
+            for (Thread t : threads) t.start();
+            done.await();
+            return REQUESTS;
+        });
+    }
+
+    /*
+        Put 10,000 shuffled requests, then take them all with one worker per local queue and record the rank of
+        each taken request among the ones still queued
+        - The workers take in turns (under a lock), so the ranks are exact
+     */
+    private static void measureRankError(int queues) throws InterruptedException {
+        RequestQueue queue = new WorkStealingRequestQueue(queues);
+        List<Request> requests = requests(10_000);
+        Collections.shuffle(requests, new Random(42));
+
+        TreeSet<Request> remaining = new TreeSet<>();
+        for (Request r : requests) {
+            queue.put(r);
+            remaining.add(r);
+        }
+
+        long[] ranks = new long[2]; // Total and max rank
+        Thread[] workers = new Thread[queues];
+        for (int w = 0; w < queues; w++) {
+            workers[w] = new Thread(() -> {
+                while (true) {
+                    synchronized (remaining) {
+                        if (remaining.isEmpty()) return;
+
+                        Request r = queue.take();
+                        long rank = remaining.tailSet(r, false).size(); // Queued requests that outrank the taken one
+                        remaining.remove(r);
+                        ranks[0] += rank;
+                        ranks[1] = Math.max(ranks[1], rank);
+                    }
+                    Thread.yield(); // Let the other workers have a turn
+                }
+            });
+        }
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+
+        System.out.printf("WorkStealing %2d queues: mean rank %.2f, max rank %d%n", queues, (double) ranks[0] / requests.size(), ranks[1]);
+    }
+
+    /*
+        A mix of requests in every priority class of the default policy
+     */
+    private static List<Request> requests(int count) {
+        Map<String, String> authHeaders = Map.of("Authorization", "imagine-this-was-a-real-auth-token");
+
+        List<Request> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Request r = i % 2 == 0 ? new ShoppingRequest() : new IndexRequest();
+            if (i % 3 == 0) r.setHeaders(authHeaders);
+            r.getPriority();
+            requests.add(r);
+        }
+        return requests;
+    }
+}
@@ -0,0 +1,342 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Fair Request Queue
+    - RequestQueue that shares every priority class fairly between its clients, so one client flooding a class
+      cannot take every worker from the other clients in it
+    - Classes are served in strict priority order (score of the PriorityPolicy, highest first, like Request.compareTo)
+    - Within a class, every client (see Request.getClientKey(): its IP address, the same key the RateLimiter uses)
+      has its own FIFO, and the clients with queued requests take turns in deficit round robin (DRR):
+        - a client's turn adds quantum to its deficit, and it is served while its deficit covers the cost of its
+          next request. Every request costs 1, so a turn serves up to quantum requests in a row
+        - a client that runs out of requests leaves the round and loses its deficit, so an idle client banks nothing
+        - a new client joins at the end of the round
+      With N clients in a class, each gets 1/N of what the class is served, whatever rate they send at
+    - Within a client, requests leave in put() order (receive order, like the LaneRequestQueue assumes)
+    - take() is O(number of classes): the top class with requests is found, and the round is a ring of its active
+      clients
+    - Memory follows the clients with queued requests: a client's FIFO is dropped once it is empty
+    - pollLowest() sheds from the client with the most requests in the lowest class, so load shedding hits the
+      flooding client first
+    - Every operation is synchronized on the queue itself, and waiting threads park on a WaiterStack, like in the
+      HeapRequestQueue
+    - The classes are sized for the policy given to the constructor, which must be the one the server ranks
+      requests with (scores above its maximum share the top class)
+
+    Sample:
+        // Up to 4 requests of a client in a row before the next client's turn
+        config.setRequestQueue(new FairRequestQueue(4));
+        // With a custom policy
+        config.setPriorityPolicy(policy).setRequestQueue(new FairRequestQueue(policy, 1));
+ */
+public class FairRequestQueue implements RequestQueue {
+    /*
+        The queued requests of one client in one class
+     */
+    private static final class Flow {
+        final String client;
+        final ArrayDeque<Request> requests = new ArrayDeque<>(); // Receive order
+        int deficit; // Requests it may still take in its current turn
+
+        Flow(String client) { this.client = client; }
+    }
+
+    /*
+        One priority class: the flows of its clients, and the round of the ones with queued requests
+     */
+    private static final class PriorityClass {
+        final Map<String, Flow> flows = new HashMap<>(); // Flows with queued requests, by client key
+        final ArrayDeque<Flow> round = new ArrayDeque<>(); // The same flows, the one whose turn it is first
+    }
+
+    private final PriorityClass[] classes; // Priority classes, index = score
+    private final int quantum; // Requests a client may take per turn
+    private final WaiterStack<Request> waiters = new WaiterStack<>(); // Threads waiting for a request (only while the queue is empty)
+    private int size; // Number of queued requests
+
+    public FairRequestQueue() {
+        this(PriorityPolicy.DEFAULT, 1);
+    }
+
+    /*
+        Constructor for the default policy (see below)
+     */
+    public FairRequestQueue(int quantum) {
+        this(PriorityPolicy.DEFAULT, quantum);
+    }
+
+    /*
+        Constructor
+        - One class per score of the policy
+
+        @param policy: The policy the server ranks requests with
+        @param quantum: Requests a client may take per turn (1 alternates clients request by request)
+     */
+    public FairRequestQueue(PriorityPolicy policy, int quantum) {
+        if (quantum <= 0) throw new IllegalArgumentException("Quantum must be positive: " + quantum);
+
+        this.quantum = quantum;
+        classes = new PriorityClass[policy.getMaxScore() + 1];
+        for (int i = 0; i < classes.length; i++) classes[i] = new PriorityClass();
+    }
+
+    /*
+        Add a request to the queue
+        - Append the request to its client's FIFO in its priority class (a new client joins the end of the round)
+        - Hand it to a waiting thread (if any w/ take())
+
+        @param request: Request object to be added to the queue
+        Post-condition: The request is added to the queue
+     */
+    @Override
+    public synchronized void put(Request request) {
+        add(request);
+        handOff();
+    }
+
+    /*
+        Add several requests under one lock (in the order given, which should be the order they were received)
+
+        @param requests: Requests to be added to the queue
+        Post-condition: Every request is added to the queue
+     */
+    @Override
+    public synchronized void putAll(Collection<? extends Request> requests) {
+        for (Request r : requests) add(r);
+        handOff();
+    }
+
+    private void add(Request request) {
+        PriorityClass c = classes[score(request)];
+        String client = request.getClientKey();
+
+        Flow flow = c.flows.get(client);
+        if (flow == null) {
+            flow = new Flow(client);
+            c.flows.put(client, flow);
+            c.round.addLast(flow);
+        }
+        flow.requests.addLast(request);
+        size++;
+    }
+
+    /*
+        Hand the next requests to waiting threads, one each, newest waiter first (caller holds the monitor)
+     */
+    private void handOff() {
+        while (size > 0) {
+            WaiterStack.Node<Request> waiter = waiters.pop();
+            if (waiter == null) return;
+
+            Request r = removeNext();
+            if (!waiter.fulfill(r)) restore(r); // It timed out or was interrupted in the meantime
+        }
+    }
+
+    /*
+        Put a request that was just removed back at the head of its client's FIFO, with its deficit
+        - Only for a waiter that gave up as it was handed the request; if that ended the client's turn, the client
+          stays at the back of the round
+     */
+    private void restore(Request request) {
+        PriorityClass c = classes[score(request)];
+        String client = request.getClientKey();
+
+        Flow flow = c.flows.get(client);
+        if (flow == null) {
+            flow = new Flow(client);
+            c.flows.put(client, flow);
+            c.round.addFirst(flow);
+        }
+        flow.requests.addFirst(request);
+        flow.deficit++;
+        size++;
+    }
+
+    /*
+        Get the next request from the queue
+        - Wait until a request is handed over (if the queue is empty)
+        - In the highest class with requests, take the next request of the client whose turn it is
+
+        @return: The next request from the queue. This method should block until a request is available. Return null if interrupted.
+     */
+    @Override
+    public Request take() {
+        return await(false, 0);
+    }
+
+    /*
+        Get the next request from the queue, waiting at most the timeout for one
+
+        @return: The next request, or null if the timeout passed or the thread was interrupted (the interrupt stays set)
+     */
+    @Override
+    public Request poll(long timeout, TimeUnit unit) {
+        return await(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /*
+        Take the next request, or park on the waiter stack until one is handed over
+     */
+    private Request await(boolean timed, long deadlineNanos) {
+        WaiterStack.Node<Request> node;
+        synchronized (this) {
+            if (size > 0) return removeNext();
+            if (timed && deadlineNanos - System.nanoTime() <= 0) return null;
+            node = waiters.push(); // Under the monitor, so the next put() sees it
+        }
+        return waiters.await(node, timed, deadlineNanos);
+    }
+
+    /*
+        Move up to max requests to out, in the order take() would return them (never blocks)
+
+        @return: The number of requests moved
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super Request> out, int max) {
+        int count = 0;
+        for (; count < max && size > 0; count++) out.add(removeNext());
+        return count;
+    }
+
+    /*
+        Wait at most the timeout for a request, then take up to max requests in take() order
+        - A non-empty queue is drained under one lock; an empty one is waited on like poll()
+
+        @return: The requests taken, empty if the timeout passed. Return null if interrupted.
+     */
+    @Override
+    public List<Request> takeBatch(int max, long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (size > 0) {
+                List<Request> batch = new ArrayList<>(Math.min(max, size));
+                drainTo(batch, max);
+                return batch;
+            }
+        }
+        return RequestQueue.super.takeBatch(max, timeout, unit);
+    }
+
+    /*
+        Remove the next request of the (non-empty) queue
+        - A flow whose deficit is used up starts a new turn (deficit += quantum) when it is at the front again
+        - After the request, the flow leaves the round if it is empty, or goes to the back if its turn is over
+     */
+    private Request removeNext() {
+        for (int score = classes.length - 1; score >= 0; score--) {
+            PriorityClass c = classes[score];
+            Flow flow = c.round.peekFirst();
+            if (flow == null) continue;
+
+            if (flow.deficit <= 0) flow.deficit += quantum; // Its turn starts
+            Request r = flow.requests.pollFirst();
+            flow.deficit--;
+            size--;
+
+            if (flow.requests.isEmpty()) {
+                c.round.pollFirst();
+                c.flows.remove(flow.client);
+            } else if (flow.deficit <= 0) {
+                c.round.addLast(c.round.pollFirst()); // Its turn is over
+            }
+            return r;
+        }
+        throw new IllegalStateException("Queue is empty");
+    }
+
+    /*
+        Remove the lowest priority request
+        - The newest request of the client with the most queued requests in the lowest class that has any
+
+        @return: The lowest priority request, or null if the queue is empty
+     */
+    @Override
+    public synchronized Request pollLowest() {
+        if (size == 0) return null;
+
+        for (PriorityClass c : classes) {
+            Flow longest = null;
+            for (Flow flow : c.round) {
+                if (longest == null || flow.requests.size() > longest.requests.size()) longest = flow;
+            }
+            if (longest == null) continue;
+
+            Request r = longest.requests.pollLast();
+            size--;
+            if (longest.requests.isEmpty()) {
+                c.round.remove(longest);
+                c.flows.remove(longest.client);
+            }
+            return r;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized int size() { return size; }
+
+    /*
+        Get the list of requests in the queue, in the order take() would return them
+        - Copy every round with its flows and deficits (the only step that holds the queue's lock)
+        - Play the rounds out on the copy, without blocking put() and take()
+
+        @return: A list of the queued requests, in take() order
+     */
+    @Override
+    public List<Request> getQueue() {
+        List<List<ArrayDeque<Request>>> rounds = new ArrayList<>(); // Per class, highest first: the flows in turn order
+        List<int[]> deficits = new ArrayList<>();
+        int total;
+        synchronized (this) {
+            total = size;
+            for (int score = classes.length - 1; score >= 0; score--) {
+                List<ArrayDeque<Request>> round = new ArrayList<>();
+                int[] deficit = new int[classes[score].round.size()];
+                int i = 0;
+                for (Flow flow : classes[score].round) {
+                    round.add(new ArrayDeque<>(flow.requests));
+                    deficit[i++] = flow.deficit;
+                }
+                rounds.add(round);
+                deficits.add(deficit);
+            }
+        }
+
+        List<Request> sorted = new ArrayList<>(total);
+        for (int c = 0; c < rounds.size(); c++) {
+            ArrayDeque<Integer> turn = new ArrayDeque<>(); // Indexes of the flows, whose turn it is first
+            for (int i = 0; i < rounds.get(c).size(); i++) turn.addLast(i);
+            int[] deficit = deficits.get(c);
+
+            while (!turn.isEmpty()) {
+                int i = turn.pollFirst();
+                if (deficit[i] <= 0) deficit[i] += quantum;
+
+                ArrayDeque<Request> flow = rounds.get(c).get(i);
+                while (deficit[i] > 0 && !flow.isEmpty()) {
+                    sorted.add(flow.pollFirst());
+                    deficit[i]--;
+                }
+                if (!flow.isEmpty()) turn.addLast(i);
+            }
+        }
+        return sorted;
+    }
+
+    /*
+        Priority class of a request (the index of its flows)
+     */
+    private int score(Request request) {
+        return Math.min(classes.length - 1, PriorityPolicy.score(request.getPriority()));
+    }
+
+    // Getters
+    public int getQuantum() { return quantum; }
+}
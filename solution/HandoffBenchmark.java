@@ -0,0 +1,155 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/*
+    Handoff Benchmark
+    - Measures the put-to-take handoff latency with idle workers: N workers wait in take() on an empty queue, one
+      producer puts a request, and the time from just before put() to take() returning in a worker is recorded.
+      The producer waits for that worker and lets every worker go idle again before the next request
+    - Compares the WaiterStack queues (HeapRequestQueue, AgingRequestQueue), the LaneRequestQueue (a Semaphore,
+      which parks its waiters in FIFO order) and a plain wait/notify queue for reference
+    - Also counts how many different workers served the requests: a LIFO waiter stack keeps giving the work to the
+      same, most recently active worker, FIFO wakeups rotate through all of them
+    - The latency is dominated by the operating system waking the parked thread; with fewer cores than workers,
+      and on a loaded machine, expect a long tail
+
+    Usage: java HandoffBenchmark
+ */
+public class HandoffBenchmark {
+    private static final int HANDOFFS = 20_000; // Requests per run
+    private static final long IDLE_NANOS = 50_000; // Pause between requests, so every worker is parked again
+
+    private static final Map<String, Supplier<RequestQueue>> QUEUES = Map.of(
+            "Heap", HeapRequestQueue::new,
+            "Aging", () -> new AgingRequestQueue(100),
+            "Lane", LaneRequestQueue::new,
+            "wait/notify", WaitNotifyQueue::new
+    );
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        System.out.println("------------- put -> take handoff, idle workers (us) -------------");
+        System.out.printf("%-28s %8s %8s %8s %8s %8s%n", "", "p50", "p90", "p99", "p99.9", "workers");
+
+        for (int workers : new int[] { 1, 4, 16 }) {
+            for (String name : List.of("Heap", "Aging", "Lane", "wait/notify")) {
+                run(name, workers, HANDOFFS / 10); // Warmup
+                run(name, workers, HANDOFFS).print(name + ", " + workers + " workers");
+            }
+        }
+    }
+
+    private record Result(LatencyHistogram.Snapshot latencies, int workersUsed) {
+        void print(String label) {
+            System.out.printf("%-28s %8.1f %8.1f %8.1f %8.1f %8d%n", label, micros(0.5), micros(0.9), micros(0.99), micros(0.999), workersUsed);
+        }
+
+        private double micros(double quantile) {
+            return latencies.percentile(quantile) / 1e3;
+        }
+    }
+
+    private static Result run(String name, int workerCount, int handoffs) throws InterruptedException {
+        RequestQueue queue = QUEUES.get(name).get();
+        LatencyHistogram histogram = new LatencyHistogram();
+        AtomicInteger handed = new AtomicInteger();
+        AtomicLongArray served = new AtomicLongArray(workerCount);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < workerCount; w++) {
+            int worker = w;
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    Request r = queue.take();
+                    if (r == null) return;
+                    histogram.record(System.nanoTime() - r.receiveTime);
+                    served.incrementAndGet(worker);
+                    handed.incrementAndGet();
+                }
+            });
+            thread.start();
+            workers.add(thread);
+        }
+
+        for (int i = 0; i < handoffs; i++) {
+            LockSupport.parkNanos(IDLE_NANOS);
+            Request r = new ShoppingRequest();
+            r.receiveTime = System.nanoTime();
+            queue.put(r);
+            while (handed.get() <= i) Thread.onSpinWait();
+        }
+
+        for (Thread thread : workers) thread.interrupt();
+        for (Thread thread : workers) thread.join();
+
+        int used = 0;
+        for (int w = 0; w < workerCount; w++) {
+            if (served.get(w) > 0) used++;
+        }
+        return new Result(histogram.snapshot(), used);
+    }
+
+    /*
+        A FIFO guarded by wait/notify, for reference (only put() and take() are benchmarked)
+        - The other waits are there so it is a complete RequestQueue
+     */
+    private static final class WaitNotifyQueue implements RequestQueue {
+        private final ArrayDeque<Request> requests = new ArrayDeque<>();
+
+        @Override
+        public synchronized void put(Request request) {
+            requests.addLast(request);
+            this.notify();
+        }
+
+        @Override
+        public synchronized Request take() {
+            try {
+                while (requests.isEmpty()) this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Null with the interrupt still set, like the other queues
+                return null;
+            }
+            return requests.pollFirst();
+        }
+
+        @Override
+        public synchronized Request poll(long timeout, TimeUnit unit) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            try {
+                long remaining;
+                while (requests.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Null with the interrupt still set, like the other queues
+                return null;
+            }
+            return requests.pollFirst();
+        }
+
+        @Override
+        public synchronized int drainTo(Collection<? super Request> out, int max) {
+            int count = 0;
+            for (; count < max && !requests.isEmpty(); count++) out.add(requests.pollFirst());
+            return count;
+        }
+
+        @Override
+        public synchronized Request pollLowest() { return requests.pollLast(); }
+
+        @Override
+        public synchronized int size() { return requests.size(); }
+
+        @Override
+        public synchronized List<Request> getQueue() { return new ArrayList<>(requests); }
+    }
+}
@@ -0,0 +1,105 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+    Header View
+    - Read-only Map of request headers, backed by the raw bytes of the header lines
+    - Created by the RequestParser instead of a HashMap: one byte[] and one int[] per request, no per-header objects
+    - containsKey() compares the key against the raw bytes without allocating
+    - get() decodes a value the first time it is asked for and keeps the String
+    - Header names are matched exactly (case-sensitive), like the HashMap it replaces
+ */
+public final class HeaderView extends AbstractMap<String, String> {
+    private final byte[] bytes; // Raw header lines (ISO-8859-1)
+    private final int[] offsets; // Per header: name start, name end, value start, value end
+    private final int count; // Number of headers
+    private String[] values; // Decoded values, created on the first get()
+    private Set<Entry<String, String>> entrySet; // Created on the first iteration
+
+    /*
+        Constructor
+
+        @param bytes: Raw header bytes, owned by the view from now on
+        @param offsets: 4 offsets into bytes per header
+        @param count: Number of headers
+     */
+    HeaderView(byte[] bytes, int[] offsets, int count) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.count = count;
+    }
+
+    @Override
+    public int size() { return count; }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : value(i);
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<>() {
+                @Override
+                public int size() { return count; }
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() { return next < count; }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next >= count) throw new NoSuchElementException();
+                            int i = next++;
+                            return new SimpleImmutableEntry<>(decode(offsets[4 * i], offsets[4 * i + 1]), value(i));
+                        }
+                    };
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /*
+        Index of the header whose name equals key, or -1
+        - Latest header wins when a name repeats, like HashMap.put() in the old parser
+     */
+    private int indexOf(Object key) {
+        if (!(key instanceof String name)) return -1;
+
+        for (int i = count - 1; i >= 0; i--) {
+            int start = offsets[4 * i], end = offsets[4 * i + 1];
+            if (end - start != name.length()) continue;
+
+            int j = 0;
+            while (j < name.length() && bytes[start + j] == name.charAt(j)) j++;
+            if (j == name.length()) return i;
+        }
+        return -1;
+    }
+
+    private String value(int i) {
+        if (values == null) values = new String[count];
+        if (values[i] == null) values[i] = decode(offsets[4 * i + 2], offsets[4 * i + 3]);
+        return values[i];
+    }
+
+    private String decode(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,114 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/*
+    Heap Layout Benchmark
+    - Compares the object heap (HeapRequestQueue, an ArrayList<Request> sifted with compareTo) with the
+      structure-of-arrays heap (PrimitiveHeapRequestQueue, long keys + int slots) on deep queues, 10k to 1M requests
+    - Time: put() of a new request + take() of the highest one, on a queue that stays at the given size. The take
+      sifts from the root to a leaf, so at 1M requests every operation walks about 20 levels. Once the heap no longer
+      fits in the CPU caches the time per operation mostly counts cache misses: the object heap misses on every
+      Request it compares, the primitive heap only on the key array
+    - Footprint: heap bytes the queue itself retains per queued request (measured with the requests already
+      allocated, so only the queue's own arrays count), and the GC collections / pause time during the timed runs
+      (every operation allocates one new request, which drives the young collections)
+    - This JVM cannot read hardware counters; for the cache misses themselves run it under
+      perf stat -e cache-misses,cache-references java HeapLayoutBenchmark
+
+    Usage: java HeapLayoutBenchmark
+ */
+public class HeapLayoutBenchmark {
+    private static final int OPERATIONS = 200_000; // put + take pairs per timed iteration
+
+    private static final Map<String, Supplier<RequestQueue>> QUEUES = Map.of(
+            "Heap", HeapRequestQueue::new,
+            "PrimitiveHeap", PrimitiveHeapRequestQueue::new
+    );
+
+    public static void main(String[] args) {
+        System.out.println("------------- put + take (steady size) -------------");
+        for (int size : new int[] { 10_000, 100_000, 1_000_000 }) {
+            for (String name : List.of("Heap", "PrimitiveHeap")) {
+                benchmark(name, size);
+            }
+        }
+
+        System.out.println("------------- Retained bytes per queued request -------------");
+        footprint("Heap", 10_000); // Warmup: the first measurement also counts one-time allocations
+        for (int size : new int[] { 10_000, 100_000, 1_000_000 }) {
+            for (String name : List.of("Heap", "PrimitiveHeap")) {
+                System.out.printf("%-52s %12.1f bytes/request%n", name + " " + size + " queued", footprint(name, size));
+            }
+        }
+    }
+
+    private static void benchmark(String name, int size) {
+        RequestQueue queue = QUEUES.get(name).get();
+        for (Request r : requests(size, new Random(42))) queue.put(r);
+        Random random = new Random(7);
+
+        long[] gc = gcTotals();
+        Bench.run(name + " " + size + " queued", 3, 5, () -> {
+            for (int i = 0; i < OPERATIONS; i++) {
+                queue.put(request(random));
+                Bench.sink = queue.take();
+            }
+            return OPERATIONS;
+        });
+        long[] after = gcTotals();
+        System.out.printf("%-52s %12d GCs, %d ms paused%n", "", after[0] - gc[0], after[1] - gc[1]);
+    }
+
+    /*
+        Heap used by the queue itself: the requests are allocated (and kept) before the queue is filled
+     */
+    private static double footprint(String name, int size) {
+        List<Request> requests = requests(size, new Random(42));
+        Bench.sink = null;
+        long before = usedHeap();
+
+        RequestQueue queue = QUEUES.get(name).get();
+        for (Request r : requests) queue.put(r);
+        long after = usedHeap();
+
+        Bench.sink = new Object[] { queue, requests }; // Both stay reachable until after the measurement
+        return (double) (after - before) / size;
+    }
+
+    private static List<Request> requests(int count, Random random) {
+        List<Request> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) requests.add(request(random));
+        Collections.shuffle(requests, random); // Random sequence order within a class, so sifts do not run in order
+        return requests;
+    }
+
+    /*
+        A request in a random class of the default policy (priority computed up front)
+     */
+    private static Request request(Random random) {
+        Request r = random.nextBoolean() ? new ShoppingRequest() : new IndexRequest();
+        if (random.nextInt(3) == 0) r.setHeaders(Map.of("Authorization", "imagine-this-was-a-real-auth-token"));
+        r.getPriority();
+        return r;
+    }
+
+    private static long[] gcTotals() {
+        long count = 0, millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
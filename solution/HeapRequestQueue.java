@@ -0,0 +1,284 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Heap Request Queue
+    - Default RequestQueue, storing incoming requests in a binary max-heap ordered by Request.compareTo
+    - Every operation is synchronized on the queue itself
+    - Threads waiting in take() park on a WaiterStack outside the monitor; put() hands the request straight to the
+      thread that parked last
+ */
+public class HeapRequestQueue implements RequestQueue {
+    private final ArrayList<Request> heap = new ArrayList<>(); // Heap to store the requests
+    private final WaiterStack<Request> waiters = new WaiterStack<>(); // Threads waiting for a request (only while the heap is empty)
+
+    /*
+        Add a request to the queue
+        - Add the request to the heap
+        - Reorder the heap to maintain the priority queue property
+        - Hand it to a waiting thread (if any w/ take())
+
+        @param request: Request object to be added to the queue
+        Post-condition: The request is added to the queue
+     */
+    @Override
+    public synchronized void put(Request request) {
+        add(request);
+        handOff();
+    }
+
+    /*
+        Add several requests under one lock
+        - The highest ones go to the waiting threads, one each
+
+        @param requests: Requests to be added to the queue
+        Post-condition: Every request is added to the queue
+     */
+    @Override
+    public synchronized void putAll(Collection<? extends Request> requests) {
+        for (Request r : requests) add(r);
+        handOff();
+    }
+
+    /*
+        Hand the highest requests to waiting threads, one each, newest waiter first (caller holds the monitor)
+        - Threads only wait while the heap is empty, so after a put() this hands over the new request itself
+     */
+    private void handOff() {
+        while (!heap.isEmpty()) {
+            WaiterStack.Node<Request> waiter = waiters.pop();
+            if (waiter == null) return;
+
+            Request r = removeFirst();
+            if (!waiter.fulfill(r)) add(r); // It timed out or was interrupted in the meantime
+        }
+    }
+
+    /*
+        Add a request to the heap and move it up to where it belongs
+     */
+    private void add(Request request) {
+        heap.add(request);
+        int index = heap.size() - 1;
+
+        while (index > 0) {
+            int parentIndex = (index - 1) / 2;
+            Request parent = heap.get(parentIndex);
+            if (request.compareTo(parent) <= 0) {
+                break;
+            }
+            heap.set(index, parent);
+            index = parentIndex;
+        }
+
+        heap.set(index, request);
+    }
+
+
+    /*
+        Get the next request from the queue
+        - Wait until a request is handed over (if the queue is empty)
+        - Remove the request from the heap
+        - Reorder the heap to maintain the priority queue property
+        - Return the request
+
+        @return: The next request from the queue. This method should block until a request is available. Return null if interrupted.
+     */
+    @Override
+    public Request take() {
+        return await(false, 0);
+    }
+
+    /*
+        Get the next request from the queue, waiting at most the timeout for one
+
+        @return: The next request, or null if the timeout passed or the thread was interrupted (the interrupt stays set)
+     */
+    @Override
+    public Request poll(long timeout, TimeUnit unit) {
+        return await(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /*
+        Take the first request, or park on the waiter stack until one is handed over
+     */
+    private Request await(boolean timed, long deadlineNanos) {
+        WaiterStack.Node<Request> node;
+        synchronized (this) {
+            if (!heap.isEmpty()) return removeFirst();
+            if (timed && deadlineNanos - System.nanoTime() <= 0) return null;
+            node = waiters.push(); // Under the monitor, so the next put() sees it
+        }
+        return waiters.await(node, timed, deadlineNanos);
+    }
+
+    /*
+        Move up to max of the highest priority requests to out, highest first (never blocks)
+
+        @return: The number of requests moved
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super Request> out, int max) {
+        int count = 0;
+        for (; count < max && !heap.isEmpty(); count++) out.add(removeFirst());
+        return count;
+    }
+
+    /*
+        Wait at most the timeout for a request, then take up to max requests, highest priority first
+        - A non-empty queue is drained under one lock, so the batch costs one lock acquisition
+        - An empty queue is waited on like poll(); whatever arrived with the handed request is drained after it
+
+        @return: The requests taken, empty if the timeout passed. Return null if interrupted.
+     */
+    @Override
+    public List<Request> takeBatch(int max, long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (!heap.isEmpty()) {
+                List<Request> batch = new ArrayList<>(Math.min(max, heap.size()));
+                drainTo(batch, max);
+                return batch;
+            }
+        }
+        return RequestQueue.super.takeBatch(max, timeout, unit);
+    }
+
+    /*
+        Get the next request from the queue without waiting
+
+        @return: The highest priority request, or null if the queue is empty
+     */
+    public synchronized Request poll() {
+        return heap.isEmpty() ? null : removeFirst();
+    }
+
+    /*
+        Look at the next request without removing it
+
+        @return: The highest priority request, or null if the queue is empty
+     */
+    public synchronized Request peek() {
+        return heap.isEmpty() ? null : heap.get(0);
+    }
+
+    /*
+        Remove the root of the (non-empty) heap and reorder the heap
+     */
+    private Request removeFirst() {
+        Request result = heap.get(0);
+        Request last = heap.remove(heap.size() - 1);
+
+        if (!heap.isEmpty()) {
+            heap.set(0, last);
+            int index = 0;
+
+            while (true) {
+                int leftChildIndex = 2 * index + 1;
+                if (leftChildIndex >= heap.size()) break;
+
+                int rightChildIndex = leftChildIndex + 1;
+                int minChildIndex = rightChildIndex >= heap.size() || heap.get(leftChildIndex).compareTo(heap.get(rightChildIndex)) > 0 ? leftChildIndex : rightChildIndex;
+
+                if (last.compareTo(heap.get(minChildIndex)) >= 0) break;
+
+                heap.set(index, heap.get(minChildIndex));
+                index = minChildIndex;
+            }
+
+            heap.set(index, last);
+        }
+
+        return result;
+    }
+
+    /*
+        Remove the lowest priority request
+        - The minimum of a max-heap is one of its leaves (the second half of the array), so only those are scanned
+        - The last element takes its place, and moves up if it outranks its new parent
+
+        @return: The lowest priority request, or null if the queue is empty
+     */
+    @Override
+    public synchronized Request pollLowest() {
+        if (heap.isEmpty()) return null;
+
+        int lowestIndex = heap.size() / 2;
+        for (int i = lowestIndex + 1; i < heap.size(); i++) {
+            if (heap.get(i).compareTo(heap.get(lowestIndex)) < 0) lowestIndex = i;
+        }
+
+        Request result = heap.get(lowestIndex);
+        Request last = heap.remove(heap.size() - 1);
+
+        if (lowestIndex < heap.size()) {
+            int index = lowestIndex;
+            while (index > 0) {
+                int parentIndex = (index - 1) / 2;
+                Request parent = heap.get(parentIndex);
+                if (last.compareTo(parent) <= 0) {
+                    break;
+                }
+                heap.set(index, parent);
+                index = parentIndex;
+            }
+
+            heap.set(index, last);
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized int size() { return heap.size(); }
+
+    /*
+        Get the sorted list of requests in the queue
+        - Create a copy of the heap (the only step that holds the queue's lock)
+        - Perform a heap sort on the copy, without blocking put() and take()
+        - Return the sorted list
+
+        @return: A sorted list of requests in the queue
+     */
+    @Override
+    public List<Request> getQueue() {
+        List<Request> sortedHeap;
+        synchronized (this) {
+            sortedHeap = new ArrayList<>(heap);
+        }
+
+        for (int i = sortedHeap.size() / 2 - 1; i >= 0; i--) {
+            heapify(sortedHeap, sortedHeap.size(), i);
+        }
+
+        for (int i = sortedHeap.size() - 1; i > 0; i--) {
+            Request temp = sortedHeap.get(0);
+            sortedHeap.set(0, sortedHeap.get(i));
+            sortedHeap.set(i, temp);
+
+            heapify(sortedHeap, i, 0);
+        }
+
+        return sortedHeap;
+    }
+
+    private void heapify(List<Request> arr, int n, int i) {
+        while (true) { // Iterative, so deep heaps cannot overflow the stack
+            int leftChildIndex = 2 * i + 1;
+            int rightChildIndex = 2 * i + 2;
+
+            int smallest;
+            smallest = leftChildIndex < n && arr.get(leftChildIndex).compareTo(arr.get(i)) < 0 ? leftChildIndex : i;
+            smallest = rightChildIndex < n && arr.get(rightChildIndex).compareTo(arr.get(smallest)) < 0 ? rightChildIndex : smallest;
+
+            if (smallest == i) return;
+
+            Request temp = arr.get(i);
+            arr.set(i, arr.get(smallest));
+            arr.set(smallest, temp);
+
+            i = smallest;
+        }
+    }
+}
@@ -1,55 +1,80 @@
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
 import java.util.List;
 
 /*
     Index Request
     - Displays the current request queue
+    - Reads the queue from a QueueSnapshot, so a hit neither sorts the queue nor holds its lock while the page is built
+    - The page is split into pages of PAGE_SIZE requests: "/?page=2" shows the second one, "&size=" changes the size
+    - The page is streamed (chunked) while the snapshot is walked, so it is never built in memory as a whole
  */
 public class IndexRequest extends Request {
-    public static RequestQueue requestQueue; // Static reference to the server RequestQueue
+    private static final int PAGE_SIZE = 100; // Requests listed per page by default
+    private static final int MAX_PAGE_SIZE = 1000; // Largest page size a client may ask for
+
+    public static QueueSnapshot queueSnapshot; // Static reference to the snapshots of the server RequestQueue
 
     /*
         Process the Index Request
-        - Return a html page with the current request queue
+        - Return a html page with one page of the current request queue
         - Show the method and path of each request
+        - Streamed with a ChunkedResponseWriter
      */
     @Override
     public void process() {
-        System.out.println("Index Request Received!");
+        Log.debug("Index Request Received!");
 
         try {
-            StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n" +
-                    "Content-Type: text/html\r\n" +
-                    "\r\n" +
-                    "<html><body><h1>Request Queue</h1>");
-
-            List<Request> requests = requestQueue.getQueue();
-            if (requests.isEmpty()) {
-                response.append("<p>Request Queue is empty!</p>");
-            } else {
-                response.append("<ul>");
-                for (Request r : requests) {
-                    response
-                            .append("<li>")
-                            .append(r.method)
-                            .append(" ")
-                            .append(r.path)
-                            .append("</li>");
-                }
-                response.append("</ul>");
-            }
+            QueueSnapshot.Snapshot snapshot = queueSnapshot.get();
+            List<Request> requests = snapshot.requests();
 
-            response.append("</body></html>");
+            int size = Math.min(MAX_PAGE_SIZE, Math.max(1, intParameter("size", PAGE_SIZE)));
+            int pages = Math.max(1, (requests.size() + size - 1) / size);
+            int page = Math.min(pages, Math.max(1, intParameter("page", 1)));
+            int from = (page - 1) * size, to = Math.min(requests.size(), from + size);
 
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+            try (ChunkedResponseWriter response = stream("200 OK", "text/html")) {
+                response.append("<html><body><h1>Request Queue</h1>");
 
-            writer.write(response.toString());
-            writer.flush();
+                if (requests.isEmpty()) {
+                    response.append("<p>Request Queue is empty!</p>");
+                } else {
+                    response
+                            .append("<p>Showing ").append(from + 1).append('-').append(to)
+                            .append(" of ").append(requests.size())
+                            .append(" (snapshot ").append(snapshot.version())
+                            .append(", ").append((System.nanoTime() - snapshot.createdAt()) / 1_000_000).append(" ms old)</p>");
+
+                    response.append("<ul>");
+                    for (int i = from; i < to; i++) {
+                        Request r = requests.get(i);
+                        response
+                                .append("<li>")
+                                .append(r.method)
+                                .append(" ")
+                                .append(r.path)
+                                .append("</li>");
+                    }
+                    response.append("</ul>");
 
-            clientSocket.close();
+                    if (page > 1) response.append("<a href=\"/?page=").append(page - 1).append("&size=").append(size).append("\">Previous</a> ");
+                    if (page < pages) response.append("<a href=\"/?page=").append(page + 1).append("&size=").append(size).append("\">Next</a>");
+                }
+
+                response.append("</body></html>");
+                response.finish();
+            }
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Failed to respond to " + path, e);
+            abort();
+        }
+    }
+
+    private int intParameter(String name, int defaultValue) {
+        try {
+            String value = getQueryParameter(name);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
 }
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/*
+    Journal
+    - Append-only log of binary records on disk, split into fixed-size memory-mapped segment files
+      (journal-00000001.log, journal-00000002.log, ...)
+    - append() copies the record into the mapped segment (no system call) and returns; force() makes everything
+      appended so far durable, with one msync per segment touched. Callers batch their records between two force()
+      calls (group commit, see JournaledRequestQueue)
+    - Record framing: [int length][int CRC32C of the payload][payload]. A length of 0 marks the unused end of a
+      segment (new segment files are zero-filled). A record whose checksum does not match was torn by a crash while
+      it was written; reading a segment stops there
+    - Segments are reclaimed in order: each one counts its live records (see append() and release()), and the oldest
+      segments are deleted once they and every older one have none left. Deleting in order keeps a record that
+      cancels another (written later, so in the same or a newer segment) at least as long as the record it cancels
+    - append() is synchronized; force() may run at the same time in another thread (the flusher)
+ */
+public class Journal {
+    private static final int HEADER_SIZE = 8; // Length and checksum before every payload
+    private static final String PREFIX = "journal-", SUFFIX = ".log";
+
+    /*
+        A segment file and its mapping
+     */
+    private static final class Segment {
+        final long number; // Sequence number in the file name
+        final Path file;
+        final MappedByteBuffer buffer; // Mapped for writing, null for a recovered segment
+        int position; // End of the appended records (writer)
+        int forced; // End of the records known to be durable (force())
+        int live; // Records appended as live and not released yet
+
+        Segment(long number, Path file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize; // Bytes per segment file
+    private final List<Segment> segments = new ArrayList<>(); // Segments not deleted yet, oldest first (the last one is written)
+    private final List<Segment> recovered = new ArrayList<>(); // Segments found on startup, until deleteRecovered()
+    private long nextNumber; // Number of the next segment file
+
+    /*
+        Constructor
+        - Creates the directory if needed. Segments left by a previous run are kept for recovered() until
+          deleteRecovered(); appending starts in a new segment
+
+        @param directory: Directory of the segment files
+        @param segmentSize: Bytes per segment file (the largest record is segmentSize - 8 bytes)
+     */
+    public Journal(Path directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE) throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(Journal::isSegment).sorted().toList()) {
+                long number = Long.parseLong(file.getFileName().toString().substring(PREFIX.length(), file.getFileName().toString().length() - SUFFIX.length()));
+                recovered.add(new Segment(number, file, null));
+                nextNumber = Math.max(nextNumber, number);
+            }
+        }
+        nextNumber++;
+        segments.add(newSegment());
+    }
+
+    private static boolean isSegment(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && name.length() > PREFIX.length() + SUFFIX.length();
+    }
+
+    private Segment newSegment() throws IOException {
+        long number = nextNumber++;
+        Path file = directory.resolve(String.format("%s%08d%s", PREFIX, number, SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(number, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize)); // The mapping outlives the channel
+        }
+    }
+
+    /*
+        Read the valid records of the segments a previous run left behind, oldest first
+
+        @return: The payload of every record (read-only views of the files)
+     */
+    public List<ByteBuffer> recovered() throws IOException {
+        List<ByteBuffer> records = new ArrayList<>();
+        for (Segment segment : recovered) {
+            ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            CRC32C crc = new CRC32C();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt(buffer.position()), checksum = buffer.getInt(buffer.position() + 4);
+                if (length <= 0 || length > buffer.remaining() - HEADER_SIZE) break; // End of the segment
+
+                ByteBuffer payload = buffer.slice(buffer.position() + HEADER_SIZE, length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) break; // Torn write
+
+                records.add(payload);
+                buffer.position(buffer.position() + HEADER_SIZE + length);
+            }
+        }
+        return records;
+    }
+
+    /*
+        Delete the segments a previous run left behind (once whatever is still needed of them is appended again
+        and forced)
+     */
+    public void deleteRecovered() throws IOException {
+        for (Segment segment : recovered) Files.deleteIfExists(segment.file);
+        recovered.clear();
+    }
+
+    /*
+        Append a record (not durable until the next force())
+        - Starts a new segment if the record does not fit in the current one
+
+        @param payload: Record to append (read from its position to its limit)
+        @param live: Whether the record stays needed until release() is called for it
+        @return: The number of the segment the record went to (for release())
+     */
+    public synchronized long append(ByteBuffer payload, boolean live) {
+        int length = payload.remaining();
+        if (length == 0 || length > segmentSize - HEADER_SIZE) throw new IllegalArgumentException("Invalid record length: " + length);
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.position + HEADER_SIZE + length > segmentSize) {
+            try {
+                segment = newSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments.add(segment);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        int start = segment.position;
+        segment.buffer.put(start + HEADER_SIZE, payload, payload.position(), length);
+        segment.buffer.putInt(start + 4, (int) crc.getValue());
+        segment.buffer.putInt(start, length); // Written last, so a record is only found once it is complete
+        segment.position = start + HEADER_SIZE + length;
+        if (live) segment.live++;
+        return segment.number;
+    }
+
+    /*
+        A live record is not needed anymore
+        - Deletes the oldest segments that have no live records left (the segment being written is kept)
+
+        @param segmentNumber: What append() returned for the record
+     */
+    public synchronized void release(long segmentNumber) {
+        for (Segment segment : segments) {
+            if (segment.number == segmentNumber) {
+                segment.live--;
+                break;
+            }
+        }
+
+        while (segments.size() > 1 && segments.get(0).live == 0) {
+            Segment oldest = segments.remove(0);
+            try {
+                Files.deleteIfExists(oldest.file); // The mapping is released when the buffer is collected
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /*
+        Make every record appended so far durable
+        - Only the appended but not yet forced range of each segment is flushed
+
+        @return: Whether there was anything to flush
+     */
+    public boolean force() {
+        List<Segment> dirty = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.forced < segment.position) {
+                    dirty.add(segment);
+                    ends.add(segment.position);
+                }
+            }
+        }
+
+        for (int i = 0; i < dirty.size(); i++) {
+            Segment segment = dirty.get(i);
+            int end = ends.get(i);
+            segment.buffer.force(segment.forced, end - segment.forced);
+            segment.forced = end;
+        }
+        return !dirty.isEmpty();
+    }
+}
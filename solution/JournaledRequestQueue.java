@@ -0,0 +1,369 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Journaled Request Queue
+    - Durable mode: wraps another queue and writes every request to a Journal on disk, so the requests that were
+      queued or in process when the process died are processed after the restart
+    - put() appends a PUT record (method, path with query, selected headers, time received, priority score) to the
+      memory-mapped journal and returns without waiting for the disk
+    - Group commit: a flusher thread forces the journal, then hands every request appended before the force to the
+      wrapped queue. A request is only taken once its record is durable. Forces start at most every
+      MIN_COMMIT_INTERVAL_NANOS: an idle server commits a request right away, a busy one commits whatever arrived
+      in the last interval together, so under load the fsyncs per second stay flat while the batches grow
+    - complete() (after the response, or when the request is shed) appends a DONE record. Wrapped queues that shed
+      requests complete them through their owner (see RequestQueue.setOwner()), so the journal can wrap a
+      BoundedRequestQueue or a DeadlineRequestQueue and still sees every request they drop. DONE records are forced
+      with the next batch, or within COMMIT_INTERVAL_NANOS when there are no new requests. A crash can lose the last
+      DONE records, so a request may be processed again after a restart (at least once, never lost)
+    - On startup the requests that have a PUT and no DONE record are replayed into the wrapped queue, highest
+      priority first (receive order within a class). They keep their priority score (so IP rules need no socket)
+      and their waiting time. Their response has no client to go to and is discarded (see Request.write())
+    - Fully processed segments are deleted as the journal moves on (see Journal)
+    - On shutdown, close() commits the last group commit window into the wrapped queue, so the server answers those
+      requests with a 503 and completes them like every other queued request (see Server.stop()). Only a request
+      in process when the server gave up on it is replayed on the next start
+
+    Sample:
+        config.setRequestQueue(new JournaledRequestQueue(new HeapRequestQueue(), Path.of("journal")));
+ */
+public class JournaledRequestQueue implements RequestQueue {
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024; // Bytes per journal segment
+    private static final long MIN_COMMIT_INTERVAL_NANOS = 1_000_000; // Shortest time between two forces (group commit window)
+    private static final long COMMIT_INTERVAL_NANOS = 10_000_000; // Longest a DONE record stays in memory
+    private static final String[] DEFAULT_HEADERS = { "Authorization", "Content-Type", "Cookie" }; // Headers journaled by default
+    private static final byte PUT = 'P', DONE = 'D'; // Record types
+
+    /*
+        Where the PUT record of a journaled request is
+     */
+    private record Entry(long id, long segment) {}
+
+    private final RequestQueue queue; // Queue holding the durable requests
+    private final Journal journal;
+    private final String[] headerNames; // Headers written to the journal
+    private final Map<Request, Entry> entries = new ConcurrentHashMap<>(); // Journaled requests not completed yet
+    private final AtomicLong nextId = new AtomicLong(1); // Id of the next PUT record
+    private final Thread flusher;
+
+    private List<Request> pending = new ArrayList<>(); // Appended but not forced yet (guarded by this)
+    private volatile boolean closed;
+
+    private final AtomicLong commits = new AtomicLong(); // Forces done by the flusher
+    private final AtomicLong committed = new AtomicLong(); // Requests handed to the queue by those forces
+    private int replayed; // Requests recovered on startup
+
+    public JournaledRequestQueue(RequestQueue queue, Path directory) throws IOException {
+        this(queue, directory, DEFAULT_HEADERS);
+    }
+
+    /*
+        Constructor
+        - Replays the requests a previous run left unfinished into the queue, then starts the flusher
+
+        @param queue: Queue to wrap (it is only accessed through this queue from now on)
+        @param directory: Directory of the journal segments
+        @param headerNames: Headers written to the journal with every request (the others are not restored)
+     */
+    @SuppressWarnings("this-escape") // The wrapped queue stores it, and may complete replayed requests through it once the journal is set
+    public JournaledRequestQueue(RequestQueue queue, Path directory, String... headerNames) throws IOException {
+        this.queue = queue;
+        this.journal = new Journal(directory, SEGMENT_SIZE);
+        this.headerNames = headerNames.clone();
+        queue.setOwner(this); // Before the replay, which may already shed
+
+        replay();
+
+        flusher = new Thread(this::flush, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /*
+        Replay the unfinished requests of the previous run
+        - They are appended again to the new segment and forced before the old segments are deleted, so a crash
+          during recovery loses nothing either
+     */
+    private void replay() throws IOException {
+        Map<Long, ByteBuffer> unfinished = new LinkedHashMap<>();
+        for (ByteBuffer record : journal.recovered()) {
+            byte type = record.get(0);
+            long id = record.getLong(1);
+            if (type == PUT) unfinished.put(id, record);
+            else if (type == DONE) unfinished.remove(id);
+        }
+
+        List<ByteBuffer> records = new ArrayList<>(unfinished.values());
+        records.sort(Comparator.comparingInt((ByteBuffer record) -> record.getInt(17)).reversed()); // Stable: receive order within a score
+
+        List<Request> requests = new ArrayList<>(records.size());
+        for (ByteBuffer record : records) {
+            Request request = decode(record.duplicate());
+            journal(request);
+            requests.add(request);
+        }
+
+        journal.force();
+        journal.deleteRecovered();
+        queue.putAll(requests);
+
+        replayed = requests.size();
+        if (replayed > 0) Log.info("Replayed " + replayed + " unfinished requests from the journal");
+    }
+
+    /*
+        Add a request to the queue
+        - Appends its PUT record; the flusher puts it in the wrapped queue once the record is durable
+
+        @param request: Request object to be added to the queue
+        Post-condition: The request is journaled, and queued after the next force
+     */
+    @Override
+    public void put(Request request) {
+        if (entries.containsKey(request)) { // Polled and put back (BoundedRequestQueue): durable already
+            queue.put(request);
+            return;
+        }
+        journal(request);
+
+        boolean wake;
+        synchronized (this) {
+            wake = pending.isEmpty();
+            pending.add(request);
+        }
+        if (wake) LockSupport.unpark(flusher);
+    }
+
+    /*
+        Add several requests at once
+        - Appends all their PUT records, then wakes the flusher once; they are queued by the same force
+     */
+    @Override
+    public void putAll(Collection<? extends Request> requests) {
+        List<Request> batch = new ArrayList<>(requests.size());
+        for (Request request : requests) {
+            if (entries.containsKey(request)) { // Durable already, see put()
+                queue.put(request);
+                continue;
+            }
+            journal(request);
+            batch.add(request);
+        }
+        if (batch.isEmpty()) return;
+
+        boolean wake;
+        synchronized (this) {
+            wake = pending.isEmpty();
+            pending.addAll(batch);
+        }
+        if (wake) LockSupport.unpark(flusher);
+    }
+
+    private void journal(Request request) {
+        long id = nextId.getAndIncrement();
+        long segment = journal.append(encode(id, request), true);
+        entries.put(request, new Entry(id, segment));
+    }
+
+    /*
+        Flusher loop (group commit)
+        - Takes the pending requests, forces the journal (which covers all of them), then queues them
+        - Waits until MIN_COMMIT_INTERVAL_NANOS after the previous force started, so a busy queue commits in batches
+        - Parks while there is nothing to commit, waking up every COMMIT_INTERVAL_NANOS to force DONE records
+        - On close, forces and queues what is left, for the server to shed (see close())
+     */
+    private void flush() {
+        long lastCommit = System.nanoTime() - MIN_COMMIT_INTERVAL_NANOS;
+        while (true) {
+            long wait; // Let the next batch gather (put() unparking the flusher does not cut the window short)
+            while ((wait = lastCommit + MIN_COMMIT_INTERVAL_NANOS - System.nanoTime()) > 0 && !closed) LockSupport.parkNanos(wait);
+
+            List<Request> batch;
+            synchronized (this) {
+                batch = pending;
+                if (!batch.isEmpty()) pending = new ArrayList<>();
+            }
+
+            if (batch.isEmpty()) {
+                if (closed) {
+                    journal.force();
+                    return;
+                }
+                LockSupport.parkNanos(COMMIT_INTERVAL_NANOS);
+                journal.force(); // DONE records, if any
+                continue;
+            }
+
+            lastCommit = System.nanoTime();
+            journal.force();
+            commits.incrementAndGet();
+            committed.addAndGet(batch.size());
+            queue.putAll(batch);
+        }
+    }
+
+    @Override
+    public Request take() { return queue.take(); }
+
+    @Override
+    public Request poll(long timeout, TimeUnit unit) { return queue.poll(timeout, unit); }
+
+    @Override
+    public int drainTo(Collection<? super Request> out, int max) { return queue.drainTo(out, max); }
+
+    @Override
+    public List<Request> takeBatch(int max, long timeout, TimeUnit unit) { return queue.takeBatch(max, timeout, unit); }
+
+    @Override
+    public Request pollLowest() { return queue.pollLowest(); }
+
+    /*
+        Get the number of requests, including the ones waiting for the next force
+     */
+    @Override
+    public int size() {
+        int waiting;
+        synchronized (this) { waiting = pending.size(); }
+        return queue.size() + waiting;
+    }
+
+    @Override
+    public boolean isSaturated() { return queue.isSaturated(); }
+
+    @Override
+    public List<Request> getQueue() { return queue.getQueue(); }
+
+    /*
+        A request taken from the queue is done
+        - Appends its DONE record, so it is not replayed, and lets the journal reclaim its segment
+        - After close(), the record is not forced anymore: it is in the mapped segment, which the OS writes back
+          after the process exits (only a crash of the machine right then replays the request)
+     */
+    @Override
+    public void complete(Request request) {
+        queue.complete(request);
+
+        Entry entry = entries.remove(request);
+        if (entry == null) return;
+
+        ByteBuffer record = ByteBuffer.allocate(9).put(DONE).putLong(entry.id()).flip();
+        journal.append(record, false);
+        journal.release(entry.segment());
+    }
+
+    @Override
+    public void setOwner(RequestQueue owner) { queue.setOwner(owner); }
+
+    /*
+        Stop the flusher after a final force
+        - Requests appended since the last force are forced and handed to the wrapped queue, so the server sheds
+          them with the rest of the queue (503 and DONE) instead of leaving them unanswered
+        - Requests still in the journal without a DONE record are replayed on the next start
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.close();
+    }
+
+    // ------------- Records -------------
+
+    /*
+        PUT record: type, id, time received (epoch ms), score, method, path (with the query), header count, headers
+        - Strings are a short length followed by UTF-8 bytes
+     */
+    private ByteBuffer encode(long id, Request request) {
+        byte[] method = bytes(request.method);
+        byte[] path = bytes(request.query == null ? request.path : request.path + "?" + request.query);
+
+        List<byte[]> headers = new ArrayList<>();
+        Map<String, String> requestHeaders = request.getHeaders();
+        for (String name : headerNames) {
+            String value = requestHeaders.get(name);
+            if (value == null) continue;
+            headers.add(bytes(name));
+            headers.add(bytes(value));
+        }
+
+        int size = 1 + 8 + 8 + 4 + 2 + method.length + 2 + path.length + 1;
+        for (byte[] header : headers) size += 2 + header.length;
+
+        long receivedAt = System.currentTimeMillis() - (System.nanoTime() - request.getReceiveTime()) / 1_000_000;
+        ByteBuffer record = ByteBuffer.allocate(size)
+                .put(PUT).putLong(id).putLong(receivedAt).putInt(PriorityPolicy.score(request.getPriority()));
+        putString(record, method);
+        putString(record, path);
+        record.put((byte) (headers.size() / 2));
+        for (byte[] header : headers) putString(record, header);
+        return record.flip();
+    }
+
+    /*
+        Rebuild the request of a PUT record
+        - It gets a new sequence number (requests are decoded in the order they are queued again)
+     */
+    private static Request decode(ByteBuffer record) {
+        record.position(9); // Type and id
+        long receivedAt = record.getLong();
+        int score = record.getInt();
+        String method = getString(record);
+        String path = getString(record);
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = record.get(); i > 0; i--) headers.put(getString(record), getString(record));
+
+        int queryStart = path.indexOf('?');
+        Request request = Request.forPath(queryStart < 0 ? path : path.substring(0, queryStart));
+        request.method = method;
+        request.path = queryStart < 0 ? path : path.substring(0, queryStart);
+        request.query = queryStart < 0 ? null : path.substring(queryStart + 1);
+        request.headers = headers;
+        request.receiveTime = System.nanoTime() - Math.max(0, System.currentTimeMillis() - receivedAt) * 1_000_000;
+        request.priority = ((long) score << PriorityPolicy.SEQUENCE_BITS) | (PriorityPolicy.SEQUENCE_MASK - (request.sequence & PriorityPolicy.SEQUENCE_MASK));
+        return request;
+    }
+
+    private static byte[] bytes(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) throw new IllegalArgumentException("Too long to journal: " + s.length() + " characters");
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer record, byte[] bytes) {
+        record.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Getters
+    public RequestQueue getDelegate() { return queue; }
+    public int getReplayed() { return replayed; }
+    public long getCommits() { return commits.get(); }
+    public long getCommitted() { return committed.get(); }
+}
@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Lane Request Queue
+    - RequestQueue with one lock-free FIFO lane per priority class, so put() and take() never share a monitor
+    - A priority class is a score of the PriorityPolicy, so the lanes follow Request.compareTo, highest score first.
+      With the default policy there are four:
+        0. Auth-Based Shopping Request
+        1. Shopping Request
+        2. Auth-Based Request
+        3. Any other Request
+    - Within a lane requests leave in put() order. That matches the FIFO rule of Request.compareTo as long as
+      requests are put in the order they were created, which is the case with the single acceptor thread
+    - A semaphore counts the queued requests, so take() only blocks when every lane is empty
+    - The lanes are sized for the policy given to the constructor, which must be the one the server ranks requests
+      with (ServerConfig.setPriorityPolicy()): the queue is built before the server installs its policy, and scores
+      above the constructor policy's maximum would share the top lane, in put() order
+
+    Sample:
+        PriorityPolicy policy = PriorityPolicy.load(Path.of("priorities.txt"));
+        config.setPriorityPolicy(policy).setRequestQueue(new LaneRequestQueue(policy));
+ */
+public class LaneRequestQueue implements RequestQueue {
+    private final Deque<Request>[] lanes; // Lanes, highest priority class first
+    private final Semaphore available = new Semaphore(0); // One permit per queued request
+
+    /*
+        Constructor for the default policy
+     */
+    public LaneRequestQueue() {
+        this(PriorityPolicy.DEFAULT);
+    }
+
+    /*
+        Constructor
+        - One lane per score of the policy
+
+        @param policy: The policy the server ranks requests with
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LaneRequestQueue(PriorityPolicy policy) {
+        lanes = new Deque[policy.getMaxScore() + 1];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /*
+        Add a request to the queue
+        - Append the request to the lane of its priority class
+        - Release a permit for the waiting threads (if any w/ take())
+     */
+    @Override
+    public void put(Request request) {
+        lanes[lane(request)].offer(request);
+        available.release();
+    }
+
+    /*
+        Add several requests at once
+        - Append each to its lane, then release all their permits together
+     */
+    @Override
+    public void putAll(Collection<? extends Request> requests) {
+        for (Request r : requests) lanes[lane(r)].offer(r);
+        available.release(requests.size());
+    }
+
+    /*
+        Get the next request from the queue
+        - Wait until a request is available (if every lane is empty)
+        - Poll the lanes from the highest priority class down
+        - The permit guarantees a request for this thread, but it may be appended to a lane the scan already
+          passed, in which case the scan starts over
+
+        @return: The next request from the queue. Return null if interrupted.
+     */
+    @Override
+    public Request take() {
+        try {
+            available.acquire();
+        } catch (InterruptedException e) { return null; }
+
+        return pollHighest();
+    }
+
+    /*
+        Get the next request from the queue, waiting at most the timeout for one
+
+        @return: The next request, or null if the timeout passed or the thread was interrupted (the interrupt stays set)
+     */
+    @Override
+    public Request poll(long timeout, TimeUnit unit) {
+        try {
+            if (!available.tryAcquire(timeout, unit)) return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        return pollHighest();
+    }
+
+    /*
+        Move up to max of the highest priority requests to out, highest first (never blocks)
+        - One permit per request, taken without waiting
+
+        @return: The number of requests moved
+     */
+    @Override
+    public int drainTo(Collection<? super Request> out, int max) {
+        int count = 0;
+        for (; count < max && available.tryAcquire(); count++) out.add(pollHighest());
+        return count;
+    }
+
+    /*
+        Poll the lanes from the highest priority class down, for a request whose permit the caller holds
+     */
+    private Request pollHighest() {
+        while (true) {
+            for (Deque<Request> lane : lanes) {
+                Request r = lane.poll();
+                if (r != null) return r;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /*
+        Remove the lowest priority request
+        - Takes a permit like take(), but never waits for one
+        - Polls the newest request of the lowest priority class that has any
+
+        @return: The lowest priority request, or null if the queue is empty
+     */
+    @Override
+    public Request pollLowest() {
+        if (!available.tryAcquire()) return null;
+
+        while (true) {
+            for (int i = lanes.length - 1; i >= 0; i--) {
+                Request r = lanes[i].pollLast();
+                if (r != null) return r;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /*
+        Get the number of queued requests (requests a take() is about to poll are no longer counted)
+     */
+    @Override
+    public int size() { return available.availablePermits(); }
+
+    /*
+        Get the sorted list of requests in the queue
+        - The lanes are already sorted, so they are concatenated from the highest priority class down
+        - Weakly consistent: requests put or taken during the call may or may not show up
+     */
+    @Override
+    public List<Request> getQueue() {
+        List<Request> sorted = new ArrayList<>();
+        for (Deque<Request> lane : lanes) {
+            sorted.addAll(lane);
+        }
+        return sorted;
+    }
+
+    /*
+        Priority class of a request (the index of its lane)
+     */
+    private int lane(Request request) {
+        return Math.max(0, lanes.length - 1 - PriorityPolicy.score(request.getPriority()));
+    }
+}
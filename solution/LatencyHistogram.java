@@ -0,0 +1,93 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Latency Histogram
+    - HDR-style histogram of nanosecond latencies with a fixed relative precision
+    - Log-linear buckets: every power of two is split into SUB_BUCKETS linear buckets, so a bucket is never wider
+      than 1/16 (~6%) of the values in it, from 1ns up to Long.MAX_VALUE, in under 1000 buckets
+    - record() is lock-free and allocation-free: one bucket index computation and two atomic adds
+    - Readers take a snapshot of the counts; a recording that races with a reader may or may not be in it
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Linear buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS; // Enough for every non-negative long
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS); // Values recorded per bucket
+    private final LongAdder sum = new LongAdder(); // Sum of all recorded values (nanoseconds)
+
+    /*
+        Record one latency
+
+        @param nanos: Latency in nanoseconds (negative values count as 0)
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos)));
+        sum.add(Math.max(0, nanos));
+    }
+
+    /*
+        Take a snapshot of the counts, for percentiles and export
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum());
+    }
+
+    /*
+        Snapshot of a histogram
+        - count: number of recorded values
+        - sum: sum of the recorded values (nanoseconds)
+     */
+    public record Snapshot(long[] counts, long count, long sum) {
+        /*
+            Value at a percentile
+
+            @param quantile: 0.0 to 1.0, e.g. 0.99
+            @return: Upper bound (in nanoseconds) of the bucket holding the value, or 0 if nothing was recorded
+         */
+        public long percentile(double quantile) {
+            if (count == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        public double mean() { return count == 0 ? 0 : (double) sum / count; }
+    }
+
+    /*
+        Bucket of a value
+        - Values below SUB_BUCKETS get a bucket each
+        - Otherwise the highest bit picks the power of two, and the next SUB_BUCKET_BITS bits the linear bucket in it
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /*
+        Largest value that falls into a bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,436 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Load Generator
+    - Sends a request mix to a running Server over localhost (or to one it starts itself) and reports latency
+      percentiles per priority class, to check that higher classes really are served first under contention
+    - The mix is either replayed from a JSON-lines file, one request per line:
+        {"method": "GET", "path": "/shopping", "headers": {"Authorization": "Bearer 123"}}
+      or synthetic, with a configurable ratio of shopping / index / not found requests, and a share of them
+      carrying an Authorization header
+    - Two modes:
+        - closed: every client sends a request, waits for the response, and sends the next one right away
+        - open: requests are scheduled at a fixed total rate, whatever the server does. Latency is measured from
+          the scheduled time, so a server that falls behind is charged for the wait (no coordinated omission)
+    - The priority class of a request is its score under Request.policy (the default policy unless the server
+      was started with another one)
+    - Every client keeps one keep-alive connection, and reconnects when the server closes it
+
+    Usage: java LoadGenerator [--host localhost] [--port 8080] [--embedded] [--mode closed|open] [--clients 16]
+                              [--rate 2000] [--duration 10] [--replay requests.jsonl]
+                              [--mix shopping=40,index=40,notfound=20] [--auth 0.25]
+        --embedded starts a Server (PLATFORM, 4 workers) on the port in this process first
+ */
+public class LoadGenerator {
+
+    /*
+        One request of the mix
+        - head: the encoded request head, sent as is
+        - score: priority class of the request
+     */
+    private record Template(String method, String path, Map<String, String> headers, byte[] head, int score) {
+        static Template of(String method, String path, Map<String, String> headers, String host) {
+            StringBuilder head = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(host).append("\r\n");
+            headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+            head.append("\r\n");
+
+            Request request = Request.forPath(path.contains("?") ? path.substring(0, path.indexOf('?')) : path);
+            request.setMethod(method);
+            request.setHeaders(headers);
+            return new Template(method, path, headers, head.toString().getBytes(StandardCharsets.ISO_8859_1), Request.policy.score(request));
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final List<Template> mix; // Requests to send, in order (clients go round it)
+    private final Map<Integer, LatencyHistogram> latencies = new ConcurrentHashMap<>(); // Latency by priority class
+    private final Map<Integer, AtomicLong> statuses = new ConcurrentHashMap<>(); // Responses by status code
+    private final AtomicLong errors = new AtomicLong(); // Requests that got no response
+    private final AtomicLong next = new AtomicLong(); // Next request of the mix (and next open-loop slot)
+
+    public LoadGenerator(String host, int port, List<Template> mix) {
+        this.host = host;
+        this.port = port;
+        this.mix = mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "8080"));
+        String mode = options.getOrDefault("mode", "closed");
+        int clients = Integer.parseInt(options.getOrDefault("clients", "16"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "2000"));
+        long durationMillis = (long) (Double.parseDouble(options.getOrDefault("duration", "10")) * 1000);
+
+        Server server = null;
+        if (options.containsKey("embedded")) {
+            server = new Server(new ServerConfig().setPort(port).setLogLevel(Log.Level.WARN));
+            server.start();
+        }
+
+        List<Template> mix = options.containsKey("replay")
+                ? replay(Path.of(options.get("replay")), host)
+                : synthetic(options.getOrDefault("mix", "shopping=40,index=40,notfound=20"), Double.parseDouble(options.getOrDefault("auth", "0.25")), host);
+
+        LoadGenerator generator = new LoadGenerator(host, port, mix);
+        System.out.println("------------- Load Generator (" + mode + " loop, " + clients + " clients"
+                + (mode.equals("open") ? ", " + rate + " req/s" : "") + ", " + durationMillis / 1000.0 + " s, " + mix.size() + " request mix) -------------");
+
+        long start = System.nanoTime();
+        generator.run(mode.equals("open"), clients, rate, durationMillis);
+        generator.report((System.nanoTime() - start) / 1e9);
+
+        if (server != null) server.stop(1000);
+    }
+
+    /*
+        Run the clients until the duration is over
+
+        @param open: Open loop (fixed rate) instead of closed loop
+        @param clients: Client threads (and connections)
+        @param rate: Requests per second in total (open loop)
+        @param durationMillis: How long to send requests for
+     */
+    public void run(boolean open, int clients, double rate, long durationMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + durationMillis * 1_000_000;
+        double intervalNanos = 1e9 / rate;
+
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                Client client = new Client();
+                try {
+                    while (true) {
+                        long n = next.getAndIncrement();
+                        long scheduled = open ? start + (long) (n * intervalNanos) : System.nanoTime();
+                        if (scheduled - end >= 0 || System.nanoTime() - end >= 0) break;
+
+                        long wait;
+                        while ((wait = scheduled - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+
+                        Template template = mix.get((int) (n % mix.size()));
+                        int status = client.send(template);
+                        if (status < 0) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+
+                        statuses.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+                        latencies.computeIfAbsent(template.score(), k -> new LatencyHistogram()).record(System.nanoTime() - scheduled);
+                    }
+                } finally {
+                    client.close();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+    }
+
+    /*
+        Print throughput, status codes and the latency percentiles of every priority class (highest class first)
+     */
+    public void report(double seconds) {
+        long total = 0;
+        for (AtomicLong count : statuses.values()) total += count.get();
+
+        System.out.printf("%d responses in %.2f s (%.1f req/s), %d errors%n", total, seconds, total / seconds, errors.get());
+        new TreeMap<>(statuses).forEach((status, count) -> System.out.println("  " + status + ": " + count.get()));
+
+        System.out.printf("%-8s %9s %9s %9s %9s %9s %9s%n", "class", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        new TreeMap<>(latencies).descendingMap().forEach((score, histogram) -> {
+            LatencyHistogram.Snapshot s = histogram.snapshot();
+            System.out.printf("%-8d %9d %9.3f %9.3f %9.3f %9.3f %9.3f%n", score, s.count(),
+                    s.percentile(0.5) / 1e6, s.percentile(0.9) / 1e6, s.percentile(0.99) / 1e6, s.percentile(0.999) / 1e6, s.percentile(1.0) / 1e6);
+        });
+    }
+
+    // ------------- Client -------------
+
+    /*
+        One keep-alive connection
+        - Reads each response completely (Content-Length, chunked, or until the server closes), so the next request
+          can go out on the same connection
+     */
+    private final class Client {
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        /*
+            Send a request and read its response
+
+            @return: The status code, or -1 if the request failed
+         */
+        int send(Template template) {
+            for (int attempt = 0; attempt < 2; attempt++) { // A kept-alive connection may have been closed in between
+                try {
+                    if (socket == null) connect();
+                    out.write(template.head());
+                    out.flush();
+
+                    int status = readResponse();
+                    if (status >= 0) return status;
+                } catch (IOException ignored) {}
+                close();
+            }
+            return -1;
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        /*
+            Read one response
+            @return: The status code, or -1 if the connection closed before a status line
+         */
+        private int readResponse() throws IOException {
+            String statusLine = readLine();
+            if (statusLine == null) return -1;
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+
+            long contentLength = -1;
+            boolean chunked = false, close = false;
+            for (String line; (line = readLine()) != null && !line.isEmpty(); ) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim(), value = line.substring(colon + 1).trim();
+
+                if (name.equalsIgnoreCase("Content-Length")) contentLength = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Transfer-Encoding")) chunked = value.equalsIgnoreCase("chunked");
+                else if (name.equalsIgnoreCase("Connection")) close = value.equalsIgnoreCase("close");
+            }
+
+            if (chunked) {
+                for (long size; (size = Long.parseLong(readLine().trim(), 16)) > 0; ) {
+                    skip(size);
+                    readLine();
+                }
+                readLine(); // Blank line after the last chunk
+            } else if (contentLength >= 0) {
+                skip(contentLength);
+            } else {
+                close = true;
+                while (in.read() >= 0) {} // Body ends when the server closes
+            }
+
+            if (close) close();
+            return status;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c; (c = in.read()) >= 0; ) {
+                if (c == '\n') return line.toString();
+                if (c != '\r') line.append((char) c);
+            }
+            return line.isEmpty() ? null : line.toString();
+        }
+
+        private void skip(long bytes) throws IOException {
+            while (bytes > 0) {
+                long n = in.skip(bytes);
+                if (n <= 0) {
+                    if (in.read() < 0) throw new IOException("Connection closed in the middle of a body");
+                    n = 1;
+                }
+                bytes -= n;
+            }
+        }
+
+        void close() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            socket = null;
+        }
+    }
+
+    // ------------- Request mixes -------------
+
+    /*
+        Synthetic mix: 1000 requests with the given ratio, shuffled
+
+        @param ratio: Weights of the request kinds, e.g. "shopping=40,index=40,notfound=20"
+        @param auth: Share of the requests that carry an Authorization header
+     */
+    static List<Template> synthetic(String ratio, double auth, String host) {
+        Map<String, String> paths = Map.of("shopping", "/shopping", "index", "/", "notfound", "/missing", "metrics", "/metrics");
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        int total = 0;
+        for (String part : ratio.split(",")) {
+            String[] kv = part.split("=");
+            if (!paths.containsKey(kv[0].trim())) throw new IllegalArgumentException("Unknown request kind: " + kv[0] + " (expected one of " + paths.keySet() + ")");
+            int weight = Integer.parseInt(kv[1].trim());
+            weights.put(kv[0].trim(), weight);
+            total += weight;
+        }
+
+        Random random = new Random(42);
+        List<Template> mix = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int pick = random.nextInt(total);
+            String kind = null;
+            for (Map.Entry<String, Integer> w : weights.entrySet()) {
+                kind = w.getKey();
+                if ((pick -= w.getValue()) < 0) break;
+            }
+
+            Map<String, String> headers = random.nextDouble() < auth ? Map.of("Authorization", "Bearer load-generator-" + i) : Map.of();
+            mix.add(Template.of("GET", paths.get(kind), headers, host));
+        }
+        return mix;
+    }
+
+    /*
+        Replayed mix: one request per line of a JSON-lines file ({"method", "path", "headers"}; method defaults to GET)
+     */
+    static List<Template> replay(Path file, String host) throws IOException {
+        List<Template> mix = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank()) continue;
+
+            Map<String, Object> json = Json.parseObject(line);
+            Map<String, String> headers = new LinkedHashMap<>();
+            if (json.get("headers") instanceof Map<?, ?> h) h.forEach((name, value) -> headers.put(String.valueOf(name), String.valueOf(value)));
+
+            mix.add(Template.of(String.valueOf(json.getOrDefault("method", "GET")), String.valueOf(json.getOrDefault("path", "/")), headers, host));
+        }
+        if (mix.isEmpty()) throw new IllegalArgumentException("No requests in " + file);
+        return mix;
+    }
+
+    /*
+        Minimal JSON reader for the replay file: objects, strings, and numbers / true / false / null (kept as text)
+     */
+    private static final class Json {
+        private final String text;
+        private int i;
+
+        private Json(String text) { this.text = text; }
+
+        static Map<String, Object> parseObject(String text) {
+            Json json = new Json(text);
+            json.skipSpace();
+            return json.object();
+        }
+
+        private Map<String, Object> object() {
+            expect('{');
+            Map<String, Object> object = new HashMap<>();
+            skipSpace();
+            if (peek() == '}') {
+                i++;
+                return object;
+            }
+            while (true) {
+                skipSpace();
+                String key = string();
+                skipSpace();
+                expect(':');
+                skipSpace();
+                object.put(key, value());
+                skipSpace();
+                if (peek() == ',') {
+                    i++;
+                    continue;
+                }
+                expect('}');
+                return object;
+            }
+        }
+
+        private Object value() {
+            char c = peek();
+            if (c == '{') return object();
+            if (c == '"') return string();
+
+            int start = i;
+            while (i < text.length() && ",}] \t".indexOf(text.charAt(i)) < 0) i++;
+            return text.substring(start, i);
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder s = new StringBuilder();
+            while (true) {
+                char c = text.charAt(i++);
+                if (c == '"') return s.toString();
+                if (c != '\\') {
+                    s.append(c);
+                    continue;
+                }
+
+                char e = text.charAt(i++);
+                switch (e) {
+                    case 'n' -> s.append('\n');
+                    case 't' -> s.append('\t');
+                    case 'r' -> s.append('\r');
+                    case 'b' -> s.append('\b');
+                    case 'f' -> s.append('\f');
+                    case 'u' -> {
+                        s.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+                        i += 4;
+                    }
+                    default -> s.append(e); // \" \\ \/
+                }
+            }
+        }
+
+        private char peek() {
+            if (i >= text.length()) throw new IllegalArgumentException("Unexpected end of JSON: " + text);
+            return text.charAt(i);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) throw new IllegalArgumentException("Expected '" + c + "' at " + i + ": " + text);
+            i++;
+        }
+
+        private void skipSpace() {
+            while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+        }
+    }
+
+    /*
+        --name value pairs (and --flag without a value) to a map
+     */
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            String name = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(name, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+}
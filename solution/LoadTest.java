@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Load Test
+    - Slow readers: compares the WorkerPool execution modes when clients read their responses slowly
+        - Every request writes a 256 KB response, more than the socket buffers hold, so process() blocks until the client reads
+        - Each client reads 16 KB at a time with a short pause in between
+        - Prints the time and throughput of every mode
+    - Accept rate: connections per second a full Server takes with 1, 2 and 4 acceptor threads (SO_REUSEPORT)
+        - Every client connects, sends one "Connection: close" request, reads the response and starts over
+        - The clients run on the same machine, so they compete with the server for the cores
+
+    Usage: java LoadTest [clients]
+ */
+public class LoadTest {
+    private static final int RESPONSE_SIZE = 256 * 1024; // Bytes written per request
+    private static final int READ_SIZE = 16 * 1024; // Bytes read by a client at a time
+    private static final long READ_PAUSE_MILLIS = 5; // Pause between the reads of a client
+    private static final int ACCEPT_CLIENTS = 16; // Client threads of the accept rate test
+    private static final long ACCEPT_MILLIS = 2000; // Duration of every accept rate run
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        Log.install(new Log(Log.Level.WARN, null, 8192)); // No access log lines in between the results
+
+        System.out.println("------------- Slow Reader Load Test (" + clients + " clients) -------------");
+
+        run("PLATFORM (4 workers)", new ServerConfig().setExecutionMode(ServerConfig.ExecutionMode.PLATFORM).setWorkerThreads(4), clients);
+        run("VIRTUAL (cap 256)", new ServerConfig().setExecutionMode(ServerConfig.ExecutionMode.VIRTUAL).setMaxVirtualThreads(256), clients);
+
+        System.out.println("------------- Accept Rate Load Test (" + ACCEPT_CLIENTS + " clients, " + Runtime.getRuntime().availableProcessors() + " cores) -------------");
+
+        acceptRate(1, ACCEPT_MILLIS / 2, false); // Warmup, so the first measured run is not the one paying for the JIT
+        for (int acceptors : new int[] { 1, 2, 4 }) {
+            acceptRate(acceptors, ACCEPT_MILLIS, true);
+        }
+    }
+
+    /*
+        Run a Server with the given number of acceptors and count the connections it serves in the given time
+     */
+    private static void acceptRate(int acceptors, long millis, boolean print) throws Exception {
+        Server server = new Server(new ServerConfig().setPort(0).setAcceptorThreads(acceptors).setLogLevel(Log.Level.WARN));
+        server.start();
+
+        AtomicLong connections = new AtomicLong(), failures = new AtomicLong();
+        long end = System.nanoTime() + millis * 1_000_000;
+        byte[] request = "GET /shopping HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        Thread[] clients = new Thread[ACCEPT_CLIENTS];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread(() -> {
+                byte[] buffer = new byte[4096];
+                while (System.nanoTime() < end) {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                        socket.getOutputStream().write(request);
+                        InputStream in = socket.getInputStream();
+                        while (in.read(buffer) > 0) {} // Until the server closes the connection
+                        connections.incrementAndGet();
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread t : clients) t.join();
+
+        server.stop(1000);
+        if (print) System.out.printf("%d acceptor(s)           %8.1f conn/s  (%d failed)%n", acceptors, connections.get() * 1000.0 / millis, failures.get());
+    }
+
+    /*
+        Run one mode
+        - Starts a WorkerPool on a fresh queue
+        - Connects the clients and queues a BulkRequest for each accepted socket
+        - Waits until every client has read its whole response
+     */
+    private static void run(String name, ServerConfig config, int clients) throws Exception {
+        RequestQueue requestQueue = new HeapRequestQueue();
+        WorkerPool workerPool = new WorkerPool(config, new Metrics(requestQueue, WorkerPool.capacity(config)));
+        workerPool.start(requestQueue);
+
+        CountDownLatch done = new CountDownLatch(clients);
+        try (ServerSocket serverSocket = new ServerSocket(0, clients, InetAddress.getLoopbackAddress())) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < clients; i++) {
+                Thread client = new Thread(() -> {
+                    try {
+                        readSlowly(serverSocket.getLocalPort());
+                    } catch (Exception e) {
+                        Log.error("Slow client failed", e);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+                client.setDaemon(true);
+                client.start();
+
+                Socket socket = serverSocket.accept();
+                socket.setSendBufferSize(READ_SIZE);
+
+                Request r = new BulkRequest();
+                r.setClientSocket(socket);
+                requestQueue.put(r);
+            }
+
+            done.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-22s %6.2f s  %8.1f req/s%n", name, seconds, clients / seconds);
+        } finally {
+            workerPool.stop();
+        }
+    }
+
+    /*
+        A client that reads its response in small pieces, pausing in between
+     */
+    private static void readSlowly(int port) throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(READ_SIZE); // Before connecting, so the small window is advertised
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            InputStream in = socket.getInputStream();
+
+            byte[] buffer = new byte[READ_SIZE];
+            int total = 0, n;
+            while (total < RESPONSE_SIZE && (n = in.read(buffer)) > 0) {
+                total += n;
+                Thread.sleep(READ_PAUSE_MILLIS);
+            }
+        }
+    }
+
+    /*
+        Bulk Request
+        - Writes RESPONSE_SIZE bytes with blocking socket writes, like the other process() implementations
+     */
+    private static class BulkRequest extends Request {
+        private static final byte[] BODY = new byte[RESPONSE_SIZE];
+
+        @Override
+        public void process() {
+            try {
+                OutputStream out = clientSocket.getOutputStream();
+                out.write(BODY);
+                out.flush();
+
+                clientSocket.close();
+            } catch (Exception e) {
+                Log.error("Failed to respond to " + path, e);
+            }
+        }
+    }
+}
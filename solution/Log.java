@@ -0,0 +1,211 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Log
+    - Asynchronous logger, so workers never wait on the PrintStream lock (or on the disk)
+    - Logging appends the record to a bounded lock-free ring buffer (multiple producers, one consumer) and returns
+    - A background drainer thread takes the records in batches and writes each batch with a single write + flush,
+      to stdout or a file
+    - When the ring buffer is full the record is dropped and counted (see getDropped()); logging never blocks
+    - Records below the configured level are skipped before anything is formatted (check isEnabled() before
+      building an expensive message)
+    - One Log is installed at a time (see install()); the static methods log to it. The default one logs INFO and
+      above to stdout
+    - Line format: 2024-05-01T12:00:00.123Z INFO message
+
+    Sample:
+        Log.install(new Log(Log.Level.DEBUG, Path.of("server.log"), 65536));
+        Log.info("Server is running on port " + port);
+ */
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int BATCH_SIZE = 256; // Most records written per write() call
+    private static final long IDLE_PARK_NANOS = 1_000_000; // Drainer sleep when the buffer is empty
+    private static final long STOPPED = -1; // Value of tail once the drainer stopped: no position can be claimed
+
+    private static volatile Log current = new Log(Level.INFO, null, 8192); // Installed log the static methods use
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> current.close())); // Write what is still buffered
+    }
+
+    private final Level level; // Lowest level that is logged
+    private final OutputStream out; // stdout or the log file
+    private final int mask; // Ring buffer size - 1 (the size is a power of two)
+    private final String[] messages; // Ring buffer slots
+    private final Level[] levels;
+    private final long[] times; // currentTimeMillis of every record
+    private final AtomicLongArray sequences; // Per slot: the position it can be written at, or that position + 1 once written
+    private final AtomicLong tail = new AtomicLong(); // Next position to write (producers), STOPPED after close
+    private long head; // Next position to read (drainer only)
+    private final AtomicLong dropped = new AtomicLong(); // Records dropped because the buffer was full
+    private final Thread drainer;
+    private volatile boolean closed;
+
+    /*
+        Constructor
+        - Starts the drainer thread (a daemon, so a forgotten log does not keep the JVM alive)
+
+        @param level: Lowest level that is logged
+        @param file: File to append to, or null for stdout
+        @param bufferSize: Records the ring buffer holds (rounded up to a power of two)
+     */
+    public Log(Level level, Path file, int bufferSize) {
+        this.level = level;
+        try {
+            this.out = file == null ? System.out : new FileOutputStream(file.toFile(), true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        int size = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.mask = size - 1;
+        this.messages = new String[size];
+        this.levels = new Level[size];
+        this.times = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+
+        drainer = new Thread(this::drain, "log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /*
+        Make a log the one the static methods use
+        - The previous one is closed once everything it buffered is written
+     */
+    public static void install(Log log) {
+        Log previous = current;
+        current = log;
+        if (previous != log) previous.close();
+    }
+
+    public static boolean isEnabled(Level level) { return current.enabled(level); }
+    public static void debug(String message) { current.log(Level.DEBUG, message); }
+    public static void info(String message) { current.log(Level.INFO, message); }
+    public static void warn(String message) { current.log(Level.WARN, message); }
+    public static void error(String message) { current.log(Level.ERROR, message); }
+
+    /*
+        Log an error with the stack trace of its cause
+     */
+    public static void error(String message, Throwable cause) {
+        if (!isEnabled(Level.ERROR)) return;
+
+        StringWriter trace = new StringWriter();
+        cause.printStackTrace(new PrintWriter(trace));
+        error(message + System.lineSeparator() + trace.toString().stripTrailing());
+    }
+
+    public static long getDropped() { return current.getDroppedRecords(); }
+
+    public long getDroppedRecords() { return dropped.get(); }
+
+    public boolean enabled(Level level) {
+        return level.compareTo(this.level) >= 0 && level != Level.OFF;
+    }
+
+    /*
+        Append a record to the ring buffer
+        - Claims the next position with a CAS on tail, fills the slot, then publishes it through its sequence
+        - Drops the record if the slot at the claimed position has not been drained yet (buffer full)
+        - A producer that passed the closed check just before close() may still claim a position: the drainer
+          writes it before stopping (see drain()). Once the drainer stopped, nothing can be claimed
+     */
+    public void log(Level level, String message) {
+        if (!enabled(level) || closed) return;
+
+        long time = System.currentTimeMillis();
+        long position = tail.get();
+        while (true) {
+            if (position == STOPPED) return;
+
+            int slot = (int) (position & mask);
+            long difference = sequences.get(slot) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = tail.get(); // Another producer claimed this position
+            }
+        }
+
+        int slot = (int) (position & mask);
+        messages[slot] = message;
+        levels[slot] = level;
+        times[slot] = time;
+        sequences.set(slot, position + 1); // Publish (a volatile write, so the slot fields are visible to the drainer)
+    }
+
+    /*
+        Drainer loop
+        - Formats up to BATCH_SIZE published records into one byte array and writes it with a single call
+        - Parks briefly while there is nothing to drain
+        - Stops once closed and every claimed position is published and written: a producer may claim one after
+          seeing closed still false, so the drainer stops only by moving tail from head to STOPPED, which fails
+          while a claimed record is still being filled in (it is waited for) and keeps any later claim out
+     */
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+
+        while (true) {
+            int count = 0;
+            while (count < BATCH_SIZE) {
+                int slot = (int) (head & mask);
+                if (sequences.get(slot) != head + 1) break; // Not published yet
+
+                batch.append(Instant.ofEpochMilli(times[slot])).append(' ').append(levels[slot]).append(' ').append(messages[slot]).append('\n');
+                messages[slot] = null;
+                sequences.set(slot, head + mask + 1); // Free the slot for the next lap
+                head++;
+                count++;
+            }
+
+            if (count > 0) {
+                try {
+                    out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException ignored) {}
+                batch.setLength(0);
+            } else if (closed && tail.compareAndSet(head, STOPPED)) {
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /*
+        Stop logging
+        - Waits (briefly) for the drainer to write what is already buffered, then closes a log file
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        try {
+            drainer.join(1000);
+        } catch (InterruptedException ignored) {}
+        if (out != System.out) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
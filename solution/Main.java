@@ -1,6 +1,20 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /*
     Driver Class
@@ -8,16 +22,31 @@ import java.util.Map;
     - Tests the RequestQueue
     - Tests the RequestQueue's Heap Sort
     - Tests the RequestQueue's take() method
+    - Tests that the LaneRequestQueue keeps the same order
+    - Tests a PriorityPolicy loaded from text
+    - Tests that the AgingRequestQueue lets old requests catch up
+    - Tests the shedding policies of the BoundedRequestQueue
+    - Tests that the DeadlineRequestQueue skips expired and disconnected requests
+    - Tests that the PrimitiveHeapRequestQueue keeps the HeapRequestQueue order
+    - Tests the LatencyHistogram percentiles
+    - Tests the WorkStealingRequestQueue
+    - Tests that putAll(), takeBatch() and drainTo() keep the priority order
+    - Tests the WaiterStack handoff (newest waiter first, interrupts)
+    - Tests that the FairRequestQueue takes turns between clients, and the RateLimiter
+    - Tests the byte-level RequestParser against Request.parse()
+    - Tests pipelined requests and "Connection: close" on a loopback Connection
+    - Tests the Router's precedence (exact, parameter, longest prefix) and late add() calls
+    - Tests that the JournaledRequestQueue replays unfinished requests, and only those
  */
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         Server server = new Server(8080);
         server.start();
 
         // ------------- Tests -------------
         System.out.println();
 
-        RequestQueue requestQueue = new RequestQueue();
+        RequestQueue requestQueue = new HeapRequestQueue();
         Map<String, String> authHeaders = Map.of("Authorization", "imagine-this-was-a-real-auth-token");
 
         Request shoppingRequest1 = new ShoppingRequest();
@@ -73,6 +102,434 @@ public class Main {
         System.out.println("Fifth request is Index Request: " + (requestQueue.take() == indexRequest1)); // Should be true
         System.out.println();
 
+        System.out.println("------------- Lane Request Queue Tests -------------");
+
+        RequestQueue laneQueue = new LaneRequestQueue();
+        laneQueue.put(shoppingRequest1);
+        laneQueue.put(notFoundRequest1);
+        laneQueue.put(indexRequest1);
+        laneQueue.put(authIndexRequest);
+        laneQueue.put(authShoppingRequest);
+
+        System.out.println("Lane Queue matches Heap Sort order: " + laneQueue.getQueue().equals(sortedHeap)); // Should be true
+        System.out.println("First request is Auth-Based Shopping Request: " + (laneQueue.take() == authShoppingRequest)); // Should be true
+        System.out.println("Second request is Shopping Request: " + (laneQueue.take() == shoppingRequest1)); // Should be true
+        System.out.println("Third request is Auth-Based Index Request: " + (laneQueue.take() == authIndexRequest)); // Should be true
+        System.out.println("Fourth request is Not Found Request: " + (laneQueue.take() == notFoundRequest1)); // Should be true
+        System.out.println("Fifth request is Index Request: " + (laneQueue.take() == indexRequest1)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Priority Policy Tests -------------");
+
+        PriorityPolicy policy = PriorityPolicy.parse("""
+                # Index pages first, then anything with a gold tier header
+                route IndexRequest 4
+                header X-Tier=gold 2
+                method POST 1
+                """);
+
+        Request goldShopping = new ShoppingRequest();
+        goldShopping.setHeaders(Map.of("X-Tier", "gold"));
+        Request postShopping = new ShoppingRequest();
+        postShopping.setMethod("POST");
+
+        System.out.println("Index Request scores 4: " + (policy.score(indexRequest1) == 4)); // Should be true
+        System.out.println("Gold Shopping Request scores 2: " + (policy.score(goldShopping) == 2)); // Should be true
+        System.out.println("POST Shopping Request scores 1: " + (policy.score(postShopping) == 1)); // Should be true
+        System.out.println("Earlier request wins a tie: " + (policy.key(shoppingRequest1) > policy.key(authShoppingRequest))); // Should be true
+
+        Request.policy = policy; // Rank the next requests with the custom policy, like a Server configured with it
+        Request plainIndex = new IndexRequest();
+        Request goldIndex = new IndexRequest();
+        goldIndex.setHeaders(Map.of("X-Tier", "gold"));
+        RequestQueue policyLaneQueue = new LaneRequestQueue(policy);
+        policyLaneQueue.put(plainIndex);
+        policyLaneQueue.put(goldIndex);
+        Request.policy = PriorityPolicy.DEFAULT;
+        System.out.println("Lane Queue sized for the policy keeps scores 4 and 6 apart: " + (policyLaneQueue.take() == goldIndex)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Aging Request Queue Tests -------------");
+
+        RequestQueue agingQueue = new AgingRequestQueue(100, 10_000, 10_000, 500, 10_000); // Shopping Requests are overdue after 500ms
+
+        Request oldIndexRequest = new IndexRequest();
+        oldIndexRequest.receiveTime -= 250_000_000; // Waited 250ms (2 aging steps), ranks like a new Shopping Request
+        Request newShoppingRequest = new ShoppingRequest();
+        Request oldAuthIndexRequest = new IndexRequest();
+        oldAuthIndexRequest.setHeaders(Map.of("Authorization", "Bearer 123"));
+        oldAuthIndexRequest.receiveTime -= 350_000_000; // Waited 350ms, ranks above a new Auth-Based Shopping Request
+        Request overdueShoppingRequest = new ShoppingRequest();
+        overdueShoppingRequest.receiveTime -= 600_000_000; // Waited past its class's 500ms maximum delay
+        Request newAuthShoppingRequest = new ShoppingRequest();
+        newAuthShoppingRequest.setHeaders(Map.of("Authorization", "Bearer 123"));
+
+        agingQueue.put(overdueShoppingRequest); // Put in the order they were received, oldest first
+        agingQueue.put(oldAuthIndexRequest);
+        agingQueue.put(oldIndexRequest);
+        agingQueue.put(newShoppingRequest);
+        agingQueue.put(newAuthShoppingRequest);
+
+        System.out.println("First request is the overdue Shopping Request: " + (agingQueue.take() == overdueShoppingRequest)); // Should be true
+        System.out.println("Second request is the old Auth-Based Index Request: " + (agingQueue.take() == oldAuthIndexRequest)); // Should be true
+        System.out.println("Third request is the new Auth-Based Shopping Request: " + (agingQueue.take() == newAuthShoppingRequest)); // Should be true
+        System.out.println("Fourth request is the new Shopping Request: " + (agingQueue.take() == newShoppingRequest)); // Should be true
+        System.out.println("Fifth request is the old Index Request: " + (agingQueue.take() == oldIndexRequest)); // Should be true
+
+        Request pipelinedShoppingRequest = new ShoppingRequest();
+        pipelinedShoppingRequest.receiveTime -= 600_000_000; // Received long ago, put only now (like a pipelined request)
+        Request freshShoppingRequest = new ShoppingRequest();
+        agingQueue.put(freshShoppingRequest);
+        agingQueue.put(pipelinedShoppingRequest);
+        System.out.println("A request put late still goes by its receive time: " + (agingQueue.take() == pipelinedShoppingRequest)); // Should be true
+        agingQueue.take();
+
+        Request agedIndexRequest = new IndexRequest();
+        agedIndexRequest.receiveTime -= 250_000_000; // Ranks like a new Shopping Request
+        Request newIndexRequest = new IndexRequest();
+        Request survivingShoppingRequest = new ShoppingRequest();
+        agingQueue.put(newIndexRequest);
+        agingQueue.put(survivingShoppingRequest);
+        agingQueue.put(agedIndexRequest);
+        System.out.println("Lowest request is the newest Index Request: " + (agingQueue.pollLowest() == newIndexRequest)); // Should be true
+        System.out.println("Lowest ties go to the lower class: " + (agingQueue.pollLowest() == agedIndexRequest && agingQueue.take() == survivingShoppingRequest)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Bounded Request Queue Tests -------------");
+
+        BoundedRequestQueue evictingQueue = new BoundedRequestQueue(new HeapRequestQueue(), 2, BoundedRequestQueue.SheddingPolicy.EVICT_LOWEST);
+        Request evictedIndexRequest = new IndexRequest();
+        Request keptShoppingRequest = new ShoppingRequest();
+        Request rejectedNotFoundRequest = new NotFoundRequest();
+        Request admittedAuthShoppingRequest = new ShoppingRequest();
+        admittedAuthShoppingRequest.setHeaders(authHeaders);
+
+        evictingQueue.put(evictedIndexRequest);
+        evictingQueue.put(keptShoppingRequest);
+        evictingQueue.put(rejectedNotFoundRequest); // Does not outrank the Index Request, so it is rejected
+        evictingQueue.put(admittedAuthShoppingRequest); // Outranks the Index Request, which is evicted
+
+        System.out.println("Queue stays at its capacity: " + (evictingQueue.size() == 2)); // Should be true
+        System.out.println("One request was rejected: " + (evictingQueue.getRejected() == 1)); // Should be true
+        System.out.println("One request was evicted: " + (evictingQueue.getEvicted() == 1)); // Should be true
+        System.out.println("First request is Auth-Based Shopping Request: " + (evictingQueue.take() == admittedAuthShoppingRequest)); // Should be true
+        System.out.println("Second request is Shopping Request: " + (evictingQueue.take() == keptShoppingRequest)); // Should be true
+
+        BoundedRequestQueue rejectingQueue = new BoundedRequestQueue(new LaneRequestQueue(), 1, BoundedRequestQueue.SheddingPolicy.REJECT);
+        rejectingQueue.put(new IndexRequest());
+        rejectingQueue.put(new ShoppingRequest());
+        System.out.println("REJECT sheds the new request: " + (rejectingQueue.size() == 1 && rejectingQueue.getRejected() == 1 && rejectingQueue.take() instanceof IndexRequest)); // Should be true
+
+        BoundedRequestQueue backpressureQueue = new BoundedRequestQueue(new AgingRequestQueue(100), 1, BoundedRequestQueue.SheddingPolicy.BACKPRESSURE);
+        backpressureQueue.put(new IndexRequest());
+        System.out.println("BACKPRESSURE saturates at its capacity: " + (backpressureQueue.isSaturated() && backpressureQueue.getBackpressurePauses() == 1)); // Should be true
+        backpressureQueue.take();
+        System.out.println("BACKPRESSURE resumes once drained: " + !backpressureQueue.isSaturated()); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Deadline Request Queue Tests -------------");
+
+        DeadlineRequestQueue deadlineQueue = new DeadlineRequestQueue(new HeapRequestQueue(), 500, 0); // Score 0 (Index, Not Found) expires after 500ms
+        Request expiredIndexRequest = new IndexRequest();
+        expiredIndexRequest.receiveTime -= 600_000_000; // Waited past its class's deadline
+        Request oldShoppingRequest = new ShoppingRequest();
+        oldShoppingRequest.receiveTime -= 600_000_000; // Shopping Requests have no deadline
+        Request disconnectedRequest = new ShoppingRequest();
+        disconnectedRequest.setHeaders(authHeaders);
+        disconnectedRequest.connection = new Connection(SocketChannel.open(), deadlineQueue, 1);
+        disconnectedRequest.connection.close(); // The client went away while the request waited
+
+        deadlineQueue.put(expiredIndexRequest);
+        deadlineQueue.put(oldShoppingRequest);
+        deadlineQueue.put(disconnectedRequest);
+        deadlineQueue.put(new NotFoundRequest());
+
+        System.out.println("Skips the disconnected request: " + (deadlineQueue.take() == oldShoppingRequest && deadlineQueue.getDisconnected() == 1)); // Should be true
+        System.out.println("Skips the expired request: " + (deadlineQueue.take() instanceof NotFoundRequest && deadlineQueue.getExpired() == 1)); // Should be true
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             SocketChannel client = SocketChannel.open(listener.getLocalAddress())) {
+            client.write(ByteBuffer.wrap("GET /shopping HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            client.shutdownOutput(); // Sent its request and waits for the answer
+            Connection halfClosed = new Connection(listener.accept(), deadlineQueue, 1);
+            List<Request> halfClosedRequests = new ArrayList<>();
+            while (halfClosed.read(new RequestParser(), halfClosedRequests)) {} // Until the end of the client's input
+
+            deadlineQueue.putAll(halfClosedRequests);
+            System.out.println("Keeps the request of a half-closed client: " + (deadlineQueue.take() == halfClosedRequests.get(0) && deadlineQueue.getDisconnected() == 1)); // Should be true
+            halfClosed.close();
+        }
+
+        DeadlineRequestQueue finQueue = new DeadlineRequestQueue(new HeapRequestQueue(), 0).setInputClosedDisconnects(true);
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+            client.write(ByteBuffer.wrap("GET /shopping HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            client.close(); // Gave up on the request (a full close)
+            Connection fullyClosed = new Connection(listener.accept(), finQueue, 1);
+            List<Request> fullyClosedRequests = new ArrayList<>();
+            while (fullyClosed.read(new RequestParser(), fullyClosedRequests)) {}
+
+            finQueue.putAll(fullyClosedRequests);
+            System.out.println("Skips the request of a client that closed, if asked to: " + (finQueue.poll(0, TimeUnit.MILLISECONDS) == null && finQueue.getDisconnected() == 1 && fullyClosed.isClosed())); // Should be true
+        }
+        System.out.println();
+
+        System.out.println("------------- Latency Histogram Tests -------------");
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1_000L); // 1us to 1ms
+        LatencyHistogram.Snapshot latencies = histogram.snapshot();
+
+        System.out.println("Count is 1000: " + (latencies.count() == 1000)); // Should be true
+        System.out.println("Median is within 1/16 of 500us: " + (Math.abs(latencies.percentile(0.5) - 500_000) <= 500_000 / 16)); // Should be true
+        System.out.println("p99 is within 1/16 of 990us: " + (Math.abs(latencies.percentile(0.99) - 990_000) <= 990_000 / 16)); // Should be true
+        System.out.println("Max is within 1/16 of 1ms: " + (Math.abs(latencies.percentile(1.0) - 1_000_000) <= 1_000_000 / 16)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Work Stealing Request Queue Tests -------------");
+
+        RequestQueue singleQueue = new WorkStealingRequestQueue(1);
+        RequestQueue stealingQueue = new WorkStealingRequestQueue(4);
+        for (Request r : List.of(shoppingRequest1, notFoundRequest1, indexRequest1, authIndexRequest, authShoppingRequest)) {
+            singleQueue.put(r);
+            stealingQueue.put(r);
+        }
+
+        System.out.println("Work Stealing Queue matches Heap Sort order: " + stealingQueue.getQueue().equals(sortedHeap)); // Should be true
+        System.out.println("One local queue keeps the exact order: " + (singleQueue.take() == authShoppingRequest && singleQueue.take() == shoppingRequest1 && singleQueue.take() == authIndexRequest)); // Should be true
+
+        Set<Request> stolen = new HashSet<>();
+        for (int i = 0; i < 5; i++) stolen.add(stealingQueue.take());
+        System.out.println("Four local queues hand out every request once: " + (stolen.size() == 5 && stealingQueue.size() == 0)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Primitive Heap Request Queue Tests -------------");
+
+        PrimitiveHeapRequestQueue primitiveQueue = new PrimitiveHeapRequestQueue();
+        for (Request r : List.of(indexRequest1, authShoppingRequest, notFoundRequest1, shoppingRequest1, authIndexRequest)) primitiveQueue.put(r);
+
+        System.out.println("Primitive Heap matches Heap Sort order: " + primitiveQueue.getQueue().equals(sortedHeap)); // Should be true
+        System.out.println("Lowest request is Index Request: " + (primitiveQueue.pollLowest() == indexRequest1)); // Should be true
+        System.out.println("First request is Auth-Based Shopping Request: " + (primitiveQueue.take() == authShoppingRequest)); // Should be true
+
+        while (primitiveQueue.size() > 0) primitiveQueue.take();
+        HeapRequestQueue objectQueue = new HeapRequestQueue();
+        boolean sameOrder = true;
+        for (int i = 0; i < 1000; i++) { // Grows the arrays past their initial capacity
+            Request r = i % 2 == 0 ? new ShoppingRequest() : new IndexRequest();
+            if (i % 3 == 0) r.setHeaders(authHeaders);
+            primitiveQueue.put(r);
+            objectQueue.put(r);
+        }
+        while (objectQueue.size() > 0) sameOrder &= primitiveQueue.take() == objectQueue.take(); // And shrinks them again
+        System.out.println("1000 requests come out in the Heap's order: " + (sameOrder && primitiveQueue.size() == 0)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Batch Take Tests -------------");
+
+        List<Request> received = List.of(shoppingRequest1, notFoundRequest1, indexRequest1, authIndexRequest, authShoppingRequest); // Receive order
+        Map<String, RequestQueue> batchQueues = Map.of(
+                "Heap", new HeapRequestQueue(),
+                "Primitive Heap", new PrimitiveHeapRequestQueue(),
+                "Lane", new LaneRequestQueue(),
+                "Aging", new AgingRequestQueue(10_000)); // Nothing ages during the test
+        for (Map.Entry<String, RequestQueue> entry : batchQueues.entrySet()) {
+            RequestQueue queue = entry.getValue();
+            queue.putAll(received);
+
+            List<Request> batch = queue.takeBatch(3, 0, TimeUnit.NANOSECONDS);
+            List<Request> rest = new ArrayList<>();
+            int drained = queue.drainTo(rest, 10);
+            System.out.println(entry.getKey() + " batch is the top 3 in order: " + batch.equals(sortedHeap.subList(0, 3))); // Should be true
+            System.out.println(entry.getKey() + " drainTo() continues in order: " + (drained == 2 && rest.equals(sortedHeap.subList(3, 5)))); // Should be true
+            System.out.println(entry.getKey() + " empty batch after the timeout: " + (queue.takeBatch(3, 10, TimeUnit.MILLISECONDS).isEmpty() && queue.poll(10, TimeUnit.MILLISECONDS) == null)); // Should be true
+        }
+
+        RequestQueue stealingBatchQueue = new WorkStealingRequestQueue(4);
+        stealingBatchQueue.putAll(received);
+        System.out.println("Work Stealing batch hands out every request once: " + (new HashSet<>(stealingBatchQueue.takeBatch(10, 0, TimeUnit.NANOSECONDS)).size() == 5)); // Should be true
+
+        DeadlineRequestQueue deadlineBatchQueue = new DeadlineRequestQueue(new HeapRequestQueue(), 500, 0);
+        Request expiredBatchRequest = new IndexRequest();
+        expiredBatchRequest.receiveTime -= 600_000_000;
+        Request liveBatchRequest = new ShoppingRequest();
+        deadlineBatchQueue.putAll(List.of(expiredBatchRequest, liveBatchRequest));
+        System.out.println("Deadline batch leaves out the expired request: " + deadlineBatchQueue.takeBatch(5, 0, TimeUnit.NANOSECONDS).equals(List.of(liveBatchRequest))); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Waiter Stack Tests -------------");
+
+        HeapRequestQueue handoffQueue = new HeapRequestQueue();
+        Request[] handed = new Request[2];
+        Thread firstWaiter = parkedTaker(handoffQueue, handed, 0);
+        Thread secondWaiter = parkedTaker(handoffQueue, handed, 1);
+
+        handoffQueue.put(shoppingRequest1);
+        secondWaiter.join();
+        System.out.println("Newest waiter gets the request: " + (handed[1] == shoppingRequest1 && firstWaiter.isAlive())); // Should be true
+
+        handoffQueue.put(indexRequest1);
+        firstWaiter.join();
+        System.out.println("Next request goes to the other waiter: " + (handed[0] == indexRequest1 && handoffQueue.size() == 0)); // Should be true
+
+        Thread interruptedWaiter = parkedTaker(handoffQueue, handed, 0);
+        interruptedWaiter.interrupt();
+        interruptedWaiter.join();
+        handoffQueue.put(notFoundRequest1);
+        System.out.println("Interrupted waiter gets null, the next request stays queued: " + (handed[0] == null && handoffQueue.size() == 1)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Fair Request Queue Tests -------------");
+
+        FairRequestQueue fairQueue = new FairRequestQueue();
+        List<Request> flood = new ArrayList<>(), trickle = new ArrayList<>();
+        for (int i = 0; i < 4; i++) flood.add(new ShoppingRequest());
+        for (int i = 0; i < 2; i++) trickle.add(new ShoppingRequest());
+        for (int i = 0; i < 4; i++) {
+            flood.get(i).setHeaders(Map.of("Authorization", "new-token-" + i)); // A fresh token every time, from one address
+            flood.get(i).clientKey = "10.0.0.1";
+        }
+        for (Request r : trickle) {
+            r.setHeaders(Map.of("Authorization", "other-client"));
+            r.clientKey = "10.0.0.2";
+        }
+        Request anonymousShopping = new ShoppingRequest(); // A lower class than the authenticated requests
+
+        fairQueue.putAll(flood);
+        fairQueue.putAll(trickle);
+        fairQueue.put(anonymousShopping);
+
+        List<Request> fairOrder = List.of(flood.get(0), trickle.get(0), flood.get(1), trickle.get(1), flood.get(2), flood.get(3), anonymousShopping);
+        System.out.println("Fair Queue matches take() order: " + fairQueue.getQueue().equals(fairOrder)); // Should be true
+        System.out.println("Lowest request is the anonymous one: " + (fairQueue.pollLowest() == anonymousShopping)); // Should be true
+        List<Request> fairTaken = new ArrayList<>();
+        for (int i = 0; i < 6; i++) fairTaken.add(fairQueue.take());
+        System.out.println("Clients take turns within a class, whatever tokens they send: " + fairTaken.equals(fairOrder.subList(0, 6))); // Should be true
+
+        FairRequestQueue sheddingFairQueue = new FairRequestQueue();
+        sheddingFairQueue.putAll(flood);
+        sheddingFairQueue.putAll(trickle);
+        System.out.println("Shedding hits the flooding client first: " + (sheddingFairQueue.pollLowest() == flood.get(3))); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Rate Limiter Tests -------------");
+
+        RateLimiter rateLimiter = new RateLimiter(10, 3); // 10 requests/s, bursts of 3
+        long now = System.nanoTime();
+        boolean burstAllowed = rateLimiter.tryAcquire("client", now) && rateLimiter.tryAcquire("client", now) && rateLimiter.tryAcquire("client", now);
+        System.out.println("A burst of 3 is allowed: " + burstAllowed); // Should be true
+        System.out.println("The 4th request is limited: " + !rateLimiter.tryAcquire("client", now)); // Should be true
+        System.out.println("Other clients are not limited: " + rateLimiter.tryAcquire("other-client", now)); // Should be true
+        System.out.println("One token is back after 100ms: " + (rateLimiter.tryAcquire("client", now + 100_000_000) && !rateLimiter.tryAcquire("client", now + 100_000_000))); // Should be true
+        System.out.println("Requests are counted: " + (rateLimiter.getAllowed() == 5 && rateLimiter.getLimited() == 2)); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Request Parser Tests -------------");
+
+        RequestParser parser = new RequestParser();
+        Request crlfRequest = parseHead(parser, "GET /shopping?item=42&count=2 HTTP/1.1\r\nHost: localhost\r\nAuthorization:    Bearer 123\r\n\r\n");
+        System.out.println("CRLF head is a Shopping Request: " + (crlfRequest instanceof ShoppingRequest && crlfRequest.getHeaders().get("Host").equals("localhost"))); // Should be true
+        System.out.println("Query string is split off the path: " + (crlfRequest.path.equals("/shopping") && crlfRequest.query.equals("item=42&count=2"))); // Should be true
+        System.out.println("Spaces after the colon are skipped: " + crlfRequest.getHeaders().get("Authorization").equals("Bearer 123")); // Should be true
+        Request lfRequest = parseHead(parser, "GET /shopping HTTP/1.1\nHost: localhost\n\n");
+        System.out.println("Bare LF head is a Shopping Request: " + (lfRequest instanceof ShoppingRequest && lfRequest.getHeaders().get("Host").equals("localhost"))); // Should be true
+        System.out.println("Request line with too many spaces is invalid: " + (parseHead(parser, "GET  /shopping HTTP/1.1\r\n\r\n") == null)); // Should be true
+        System.out.println("Over-long path is invalid: " + (parseHead(parser, "GET /" + "a".repeat(4096) + " HTTP/1.1\r\n\r\n") == null)); // Should be true
+
+        String head = "GET / HTTP/1.1\r\nHost: localhost:8080\r\nAuthorization: Bearer 123\r\nUser-Agent: curl/7.64.1\r\n\r\n";
+        Request viewRequest = parseHead(parser, head);
+        Request mapRequest = Request.parse(new BufferedReader(new StringReader(head)), null);
+        System.out.println("Header view matches Request.parse(): " + (viewRequest.getClass() == mapRequest.getClass() && viewRequest.getHeaders().equals(mapRequest.getHeaders()))); // Should be true
+        System.out.println("Same priority as Request.parse(): " + (PriorityPolicy.score(viewRequest.getPriority()) == PriorityPolicy.score(mapRequest.getPriority()))); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Connection Tests -------------");
+
+        LaneRequestQueue connectionQueue = new LaneRequestQueue();
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             SocketChannel client = SocketChannel.open(listener.getLocalAddress())) {
+            client.write(ByteBuffer.wrap("GET /shopping HTTP/1.1\r\n\r\nGET /missing HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1))); // Pipelined in one write
+            Connection pipelined = new Connection(listener.accept(), connectionQueue, 100);
+            serve(pipelined, connectionQueue, 2);
+            boolean stillOpen = !pipelined.isClosed();
+            pipelined.close();
+
+            String responses = readAll(client);
+            System.out.println("Both pipelined requests are answered on one connection: " + (stillOpen && responses.split("HTTP/1.1 ", -1).length == 3)); // Should be true
+            System.out.println("Pipelined responses come in request order: " + (responses.indexOf("Shopping!") >= 0 && responses.indexOf("Shopping!") < responses.indexOf("idk what"))); // Should be true
+        }
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             SocketChannel client = SocketChannel.open(listener.getLocalAddress())) {
+            client.write(ByteBuffer.wrap("GET /shopping HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            Connection closing = new Connection(listener.accept(), connectionQueue, 100);
+            serve(closing, connectionQueue, 1);
+
+            String response = readAll(client); // Ends once the server closes its side
+            System.out.println("\"Connection: close\" ends the connection: " + (closing.isClosed() && response.contains("Connection: close"))); // Should be true
+        }
+        System.out.println();
+
+        System.out.println("------------- Router Tests -------------");
+
+        Router testRouter = new Router()
+                .add("/items/{id}", ShoppingRequest::new)
+                .add("/items/new", IndexRequest::new)
+                .add("/items/*", MetricsRequest::new)
+                .add("/static/*", ShoppingRequest::new)
+                .add("/static/images/*", IndexRequest::new);
+        System.out.println("Exact route beats a parameter: " + route(testRouter, "/items/new").equals("/items/new")); // Should be true
+        System.out.println("Parameter beats a prefix: " + route(testRouter, "/items/42").equals("/items/{id}")); // Should be true
+        System.out.println("Prefix matches below a parameter segment: " + route(testRouter, "/items/42/reviews").equals("/items/*")); // Should be true
+        System.out.println("Longest prefix wins: " + (route(testRouter, "/static/images/logo.png").equals("/static/images/*") && route(testRouter, "/static/app.js").equals("/static/*"))); // Should be true
+
+        byte[] itemPath = "/items/42".getBytes(StandardCharsets.ISO_8859_1);
+        int[] itemParams = new int[2 * Router.MAX_PARAMS];
+        Request itemRequest = Router.create(testRouter.lookup(itemPath, itemPath.length, itemParams), itemPath, itemParams);
+        System.out.println("Path parameter is decoded: " + (itemRequest instanceof ShoppingRequest && itemRequest.getPathParams().equals(Map.of("id", "42")))); // Should be true
+
+        System.out.println("Unknown path has no route: " + (route(testRouter, "/orders") == null)); // Should be true
+        testRouter.add("/orders", IndexRequest::new);
+        System.out.println("Route added after a lookup is found: " + "/orders".equals(route(testRouter, "/orders"))); // Should be true
+        System.out.println();
+
+        System.out.println("------------- Journaled Request Queue Tests -------------");
+
+        Path journalDirectory = Files.createTempDirectory("journal");
+        JournaledRequestQueue journaledQueue = new JournaledRequestQueue(new HeapRequestQueue(), journalDirectory);
+        Request journaledAuthShopping = parseHead(parser, "GET /shopping HTTP/1.1\r\nAuthorization: Bearer 123\r\n\r\n");
+        journaledQueue.putAll(List.of(parseHead(parser, "GET / HTTP/1.1\r\n\r\n"), parseHead(parser, "GET /shopping HTTP/1.1\r\n\r\n"), journaledAuthShopping));
+        Request journaledTaken = journaledQueue.take(); // Once the batch is durable
+        journaledQueue.complete(journaledTaken);
+        journaledQueue.close(); // Stopped with two requests unfinished (like a crash, as nothing sheds them)
+
+        journaledQueue = new JournaledRequestQueue(new HeapRequestQueue(), journalDirectory);
+        System.out.println("Unfinished requests are replayed: " + (journaledTaken == journaledAuthShopping && journaledQueue.getReplayed() == 2)); // Should be true
+        Request replayedFirst = journaledQueue.take(), replayedSecond = journaledQueue.take();
+        System.out.println("Replayed in priority order: " + (replayedFirst instanceof ShoppingRequest && replayedSecond instanceof IndexRequest)); // Should be true
+        journaledQueue.complete(replayedFirst);
+        journaledQueue.complete(replayedSecond);
+        journaledQueue.put(parseHead(parser, "GET /shopping HTTP/1.1\r\n\r\n"));
+        journaledQueue.close(); // Hands the request over even if it is not committed yet
+        Request journaledShed = journaledQueue.pollLowest();
+        journaledQueue.complete(journaledShed); // Shed like Server.stop() does
+        System.out.println("Close hands uncommitted requests over: " + (journaledShed instanceof ShoppingRequest)); // Should be true
+
+        journaledQueue = new JournaledRequestQueue(new HeapRequestQueue(), journalDirectory);
+        System.out.println("Completed requests are not replayed: " + (journaledQueue.getReplayed() == 0)); // Should be true
+        journaledQueue.close();
+
+        BoundedRequestQueue journaledBoundedQueue = new BoundedRequestQueue(new HeapRequestQueue(), 1, BoundedRequestQueue.SheddingPolicy.REJECT);
+        journaledQueue = new JournaledRequestQueue(journaledBoundedQueue, journalDirectory);
+        journaledQueue.putAll(List.of(parseHead(parser, "GET /shopping HTTP/1.1\r\n\r\n"), parseHead(parser, "GET / HTTP/1.1\r\n\r\n")));
+        while (journaledBoundedQueue.size() + journaledBoundedQueue.getRejected() < 2) Thread.sleep(1); // Until the batch is committed, the Index Request is rejected
+        journaledQueue.complete(journaledQueue.take());
+        journaledQueue.close();
+        journaledQueue = new JournaledRequestQueue(new HeapRequestQueue(), journalDirectory);
+        System.out.println("Requests shed inside the journal are not replayed: " + (journaledBoundedQueue.getRejected() == 1 && journaledQueue.getReplayed() == 0)); // Should be true
+        journaledQueue.close();
+        System.out.println();
+
         System.out.println("-----------------------------------------------");
 
         System.out.println("Press enter to stop the server: ");
@@ -82,4 +539,60 @@ public class Main {
 
         server.stop();
     }
+
+    /*
+        Start a thread that takes one request from the queue into result[index], and wait until it is parked
+     */
+    private static Thread parkedTaker(RequestQueue queue, Request[] result, int index) {
+        Thread taker = new Thread(() -> result[index] = queue.take());
+        taker.start();
+        while (taker.getState() != Thread.State.WAITING) Thread.yield();
+        return taker;
+    }
+
+    /*
+        Parse one request head from a String, like the acceptor does from its buffer
+     */
+    private static Request parseHead(RequestParser parser, String head) {
+        return parser.parse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), null);
+    }
+
+    /*
+        Read and process the next count requests of a connection, like an acceptor and a worker would
+        - Reads only while nothing is queued: a pipelined request that was read already is queued by complete()
+     */
+    private static void serve(Connection connection, RequestQueue queue, int count) throws InterruptedException {
+        RequestParser parser = new RequestParser();
+        List<Request> parsed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            while (queue.size() == 0) {
+                connection.read(parser, parsed);
+                queue.putAll(parsed);
+                parsed.clear();
+            }
+            queue.take().process();
+        }
+    }
+
+    /*
+        Read everything the server sends until it closes the connection
+     */
+    private static String readAll(SocketChannel client) throws IOException {
+        StringBuilder received = new StringBuilder();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (client.read(buffer) >= 0) {
+            received.append(new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1));
+            buffer.clear();
+        }
+        return received.toString();
+    }
+
+    /*
+        Look up a path and return the pattern of the route that matched it (null for none)
+     */
+    private static String route(Router router, String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.ISO_8859_1);
+        Router.Route route = router.lookup(bytes, bytes.length, new int[2 * Router.MAX_PARAMS]);
+        return route == null ? null : route.pattern();
+    }
 }
@@ -0,0 +1,180 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+    Metrics
+    - Per-route latency histograms of every processed request:
+        - queue wait: from receiveTime until a worker picks the request up
+        - process: the worker's process() call, which includes writing the response
+        - total: from receiveTime until process() returns
+    - Gauges: queue depth, and busy workers against the worker capacity (utilisation)
+    - The load shedding counters of a BoundedRequestQueue, the skipped requests of a DeadlineRequestQueue, and the
+      group commits of a JournaledRequestQueue
+    - The requests and clients of the RateLimiter, if there is one
+    - Recording is lock-free: the per-route histograms are created once (ConcurrentHashMap.computeIfAbsent only
+      locks the first time a route is seen), then every record is a few atomic adds
+    - Exported in the Prometheus text format by the MetricsRequest ("/metrics")
+ */
+public class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 }; // Quantiles exported for every histogram
+
+    /*
+        Histograms of one route
+     */
+    private record RouteMetrics(LatencyHistogram queueWait, LatencyHistogram process, LatencyHistogram total) {
+        RouteMetrics() { this(new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()); }
+    }
+
+    private final RequestQueue requestQueue; // Queue whose depth is reported
+    private final int workerCapacity; // Requests that can be processed at once
+    private final RateLimiter rateLimiter; // Rate limiter whose counters are reported (null for none)
+    private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>(); // Histograms by route label
+    private final AtomicInteger busyWorkers = new AtomicInteger(); // Requests being processed right now
+    private final LongAdder processed = new LongAdder(); // Requests processed so far
+
+    /*
+        Constructor
+
+        @param requestQueue: Queue whose depth is reported
+        @param workerCapacity: Requests that can be processed at once (worker threads, or the virtual thread limit)
+     */
+    public Metrics(RequestQueue requestQueue, int workerCapacity) {
+        this(requestQueue, workerCapacity, null);
+    }
+
+    /*
+        Constructor
+
+        @param requestQueue: Queue whose depth is reported
+        @param workerCapacity: Requests that can be processed at once (worker threads, or the virtual thread limit)
+        @param rateLimiter: Rate limiter whose counters are reported (null for none)
+     */
+    public Metrics(RequestQueue requestQueue, int workerCapacity, RateLimiter rateLimiter) {
+        this.requestQueue = requestQueue;
+        this.workerCapacity = workerCapacity;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /*
+        A worker picked up a request and starts processing it
+
+        @return: The start time (nanoTime), to pass to finished()
+     */
+    public long started() {
+        busyWorkers.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /*
+        A worker finished processing a request
+        - Records the queue wait, process and total time of the request under its route
+
+        @param request: The processed request
+        @param start: What started() returned
+     */
+    public void finished(Request request, long start) {
+        long end = System.nanoTime();
+        busyWorkers.decrementAndGet();
+        processed.increment();
+
+        String label = label(request);
+        RouteMetrics metrics = routes.get(label);
+        if (metrics == null) metrics = routes.computeIfAbsent(label, k -> new RouteMetrics());
+
+        metrics.queueWait().record(start - request.getReceiveTime());
+        metrics.process().record(end - start);
+        metrics.total().record(end - request.getReceiveTime());
+    }
+
+    /*
+        Route label of a request: its route pattern, or "none" if no route matched
+     */
+    private static String label(Request request) {
+        return request.getRoute() != null ? request.getRoute() : "none";
+    }
+
+    /*
+        Export every metric in the Prometheus text format (version 0.0.4)
+        - Histograms are exported as summaries (quantiles, sum and count, in seconds)
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+
+        summary(out, "http_request_queue_wait_seconds", "Time from receiving a request until a worker picks it up", RouteMetrics::queueWait);
+        summary(out, "http_request_process_seconds", "Time a worker spends processing a request and writing its response", RouteMetrics::process);
+        summary(out, "http_request_duration_seconds", "Time from receiving a request until its response is written", RouteMetrics::total);
+
+        gauge(out, "request_queue_depth", "Requests waiting in the request queue", requestQueue.size());
+        gauge(out, "worker_busy", "Requests being processed right now", busyWorkers.get());
+        gauge(out, "worker_capacity", "Requests that can be processed at once", workerCapacity);
+        gauge(out, "worker_utilization", "Busy workers divided by the worker capacity", (double) busyWorkers.get() / workerCapacity);
+        counter(out, "http_requests_processed_total", "Requests processed", processed.sum());
+        counter(out, "log_records_dropped_total", "Log records dropped because the log buffer was full", Log.getDropped());
+
+        if (rateLimiter != null) {
+            counter(out, "requests_rate_limited_total", "Requests answered with a 429 because their client was over its rate", rateLimiter.getLimited());
+            gauge(out, "rate_limiter_clients", "Clients the rate limiter tracks right now", rateLimiter.getClients());
+        }
+
+        for (RequestQueue queue = requestQueue; queue != null; ) { // Counters of the wrapping queues, outermost first
+            if (queue instanceof BoundedRequestQueue bounded) {
+                counter(out, "requests_rejected_total", "New requests shed with a 503 because the queue was full", bounded.getRejected());
+                counter(out, "requests_evicted_total", "Queued requests shed with a 503 for a higher priority request", bounded.getEvicted());
+                counter(out, "accept_backpressure_pauses_total", "Times accepting connections was paused because the queue was full", bounded.getBackpressurePauses());
+                queue = bounded.getDelegate();
+            } else if (queue instanceof DeadlineRequestQueue deadline) {
+                counter(out, "requests_expired_total", "Queued requests answered with a 503 because they passed their deadline", deadline.getExpired());
+                counter(out, "requests_disconnected_total", "Queued requests dropped because their client disconnected", deadline.getDisconnected());
+                queue = deadline.getDelegate();
+            } else if (queue instanceof JournaledRequestQueue journaled) {
+                counter(out, "journal_commits_total", "Journal forces (group commits) that made queued requests durable", journaled.getCommits());
+                counter(out, "journal_committed_requests_total", "Requests made durable by those commits", journaled.getCommitted());
+                queue = journaled.getDelegate();
+            } else {
+                queue = null;
+            }
+        }
+
+        return out.toString();
+    }
+
+    private void summary(StringBuilder out, String name, String help, Function<RouteMetrics, LatencyHistogram> histogram) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+
+        for (Map.Entry<String, RouteMetrics> route : routes.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = histogram.apply(route.getValue()).snapshot();
+            String labels = "route=\"" + escape(route.getKey()) + "\"";
+
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(snapshot.percentile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ").append(seconds(snapshot.sum())).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(snapshot.count()).append('\n');
+        }
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
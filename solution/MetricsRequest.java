@@ -0,0 +1,23 @@
+/*
+    Metrics Request
+    - Exports the server's Metrics in the Prometheus text format
+ */
+public class MetricsRequest extends Request {
+    public static Metrics metrics; // Static reference to the metrics of the server
+
+    /*
+        Process the Metrics Request
+        - Return every metric as text/plain in the Prometheus exposition format
+     */
+    @Override
+    public void process() {
+        Log.debug("Metrics Request Received!");
+
+        try {
+            send("200 OK", "text/plain; version=0.0.4", metrics.toPrometheus());
+        } catch (Exception e) {
+            Log.error("Failed to respond to " + path, e);
+            abort();
+        }
+    }
+}
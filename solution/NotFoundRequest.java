@@ -1,7 +1,5 @@
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-
 public class NotFoundRequest extends Request {
+    private static final StaticResponse RESPONSE = new StaticResponse("200 OK", "text/html", "<html><body><h1>idk what your looking for!</h1></body></html>"); // Encoded once
 
     /*
         Process the Not Found Request
@@ -9,22 +7,13 @@ public class NotFoundRequest extends Request {
      */
     @Override
     public void process() {
-        System.out.println("Unknown Request Received!");
+        Log.debug("Unknown Request Received!");
 
         try {
-            String response = "HTTP/1.1 200 OK\r\n" +
-                    "Content-Type: text/html\r\n" +
-                    "\r\n" +
-                    "<html><body><h1>idk what your looking for!</h1></body></html>";
-
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-
-            writer.write(response);
-            writer.flush();
-
-            clientSocket.close();
+            send(RESPONSE);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Failed to respond to " + path, e);
+            abort();
         }
     }
 }
@@ -0,0 +1,303 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Primitive Heap Request Queue
+    - Same order and locking as the HeapRequestQueue, with a structure-of-arrays layout for deep queues
+    - The binary max-heap holds the priority keys (Request.getPriority(), the long compareTo compares) in a long[],
+      and next to each key the int slot of its request in a request table. A sift compares and moves keys and slots
+      only, two contiguous primitive arrays, and never dereferences a Request or calls compareTo
+    - A sift step reads 8 bytes of key per child in the same array (a node's children are adjacent), where the
+      object heap loads a Request reference and then that request's priority field, in an object anywhere on the heap
+    - The free slots of the table are kept in the unused tail of the slot array (there are exactly as many free
+      slots as unused heap positions), so slots are reused, the table never needs compacting, and an entry costs
+      16 bytes: key, slot and table reference
+    - The arrays grow by doubling and shrink by half once the queue is a quarter full, so a burst does not pin its
+      memory; put() and take() allocate nothing
+    - Every operation is synchronized on the queue itself; waiting threads park on a WaiterStack, like in the
+      HeapRequestQueue
+
+    Sample:
+        config.setRequestQueue(new PrimitiveHeapRequestQueue());
+ */
+public class PrimitiveHeapRequestQueue implements RequestQueue {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] keys = new long[INITIAL_CAPACITY]; // Heap of priority keys (highest at 0)
+    private int[] slots = new int[INITIAL_CAPACITY]; // Table slot of the request of keys[i] (i < size), a free slot (i >= size)
+    private Request[] table = new Request[INITIAL_CAPACITY]; // Queued requests, by slot
+    private int size; // Number of queued requests (and of used slots)
+    private final WaiterStack<Request> waiters = new WaiterStack<>(); // Threads waiting for a request (only while the queue is empty)
+
+    public PrimitiveHeapRequestQueue() {
+        for (int i = 0; i < INITIAL_CAPACITY; i++) slots[i] = i;
+    }
+
+    /*
+        Add a request to the queue
+        - Store the request in a free slot of the table
+        - Sift its key up the heap
+        - Hand it to a waiting thread (if any w/ take())
+
+        @param request: Request object to be added to the queue
+        Post-condition: The request is added to the queue
+     */
+    @Override
+    public synchronized void put(Request request) {
+        add(request);
+        handOff();
+    }
+
+    /*
+        Add several requests under one lock
+        - The highest ones go to the waiting threads, one each
+
+        @param requests: Requests to be added to the queue
+        Post-condition: Every request is added to the queue
+     */
+    @Override
+    public synchronized void putAll(Collection<? extends Request> requests) {
+        for (Request r : requests) add(r);
+        handOff();
+    }
+
+    /*
+        Hand the highest requests to waiting threads, one each, newest waiter first (caller holds the monitor)
+     */
+    private void handOff() {
+        while (size > 0) {
+            WaiterStack.Node<Request> waiter = waiters.pop();
+            if (waiter == null) return;
+
+            Request r = remove(0);
+            if (!waiter.fulfill(r)) add(r); // It timed out or was interrupted in the meantime
+        }
+    }
+
+    private void add(Request request) {
+        if (size == keys.length) resize(keys.length * 2);
+
+        int slot = slots[size]; // A free slot
+        table[slot] = request;
+        siftUp(size++, request.getPriority(), slot);
+    }
+
+    /*
+        Get the next request from the queue
+        - Wait until a request is handed over (if the queue is empty)
+        - Remove the root of the heap and free its slot
+
+        @return: The next request from the queue. This method should block until a request is available. Return null if interrupted.
+     */
+    @Override
+    public Request take() {
+        return await(false, 0);
+    }
+
+    /*
+        Get the next request from the queue, waiting at most the timeout for one
+
+        @return: The next request, or null if the timeout passed or the thread was interrupted (the interrupt stays set)
+     */
+    @Override
+    public Request poll(long timeout, TimeUnit unit) {
+        return await(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /*
+        Take the root, or park on the waiter stack until a request is handed over
+     */
+    private Request await(boolean timed, long deadlineNanos) {
+        WaiterStack.Node<Request> node;
+        synchronized (this) {
+            if (size > 0) return remove(0);
+            if (timed && deadlineNanos - System.nanoTime() <= 0) return null;
+            node = waiters.push(); // Under the monitor, so the next put() sees it
+        }
+        return waiters.await(node, timed, deadlineNanos);
+    }
+
+    /*
+        Move up to max of the highest priority requests to out, highest first (never blocks)
+
+        @return: The number of requests moved
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super Request> out, int max) {
+        int count = 0;
+        for (; count < max && size > 0; count++) out.add(remove(0));
+        return count;
+    }
+
+    /*
+        Wait at most the timeout for a request, then take up to max requests, highest priority first
+        - A non-empty queue is drained under one lock; an empty one is waited on like poll()
+
+        @return: The requests taken, empty if the timeout passed. Return null if interrupted.
+     */
+    @Override
+    public List<Request> takeBatch(int max, long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (size > 0) {
+                List<Request> batch = new ArrayList<>(Math.min(max, size));
+                drainTo(batch, max);
+                return batch;
+            }
+        }
+        return RequestQueue.super.takeBatch(max, timeout, unit);
+    }
+
+    /*
+        Get the next request from the queue without waiting
+
+        @return: The highest priority request, or null if the queue is empty
+     */
+    public synchronized Request poll() {
+        return size == 0 ? null : remove(0);
+    }
+
+    /*
+        Look at the next request without removing it
+
+        @return: The highest priority request, or null if the queue is empty
+     */
+    public synchronized Request peek() {
+        return size == 0 ? null : table[slots[0]];
+    }
+
+    /*
+        Remove the lowest priority request
+        - The minimum of a max-heap is one of its leaves, so only the keys of the second half are scanned
+
+        @return: The lowest priority request, or null if the queue is empty
+     */
+    @Override
+    public synchronized Request pollLowest() {
+        if (size == 0) return null;
+
+        int lowestIndex = size / 2;
+        for (int i = lowestIndex + 1; i < size; i++) {
+            if (keys[i] < keys[lowestIndex]) lowestIndex = i;
+        }
+        return remove(lowestIndex);
+    }
+
+    /*
+        Remove the entry at index of the heap
+        - The last entry takes its place and moves down (or up, when a leaf was removed) to where it belongs
+        - The request's slot goes to the position the last entry left, which is now the first free one
+     */
+    private Request remove(int index) {
+        int slot = slots[index];
+        Request result = table[slot];
+        table[slot] = null;
+
+        size--;
+        long lastKey = keys[size];
+        int lastSlot = slots[size];
+        slots[size] = slot;
+        if (index < size) {
+            siftDown(index, lastKey, lastSlot);
+            if (keys[index] == lastKey) siftUp(index, lastKey, lastSlot);
+        }
+
+        if (size < keys.length / 4 && keys.length > INITIAL_CAPACITY) resize(keys.length / 2);
+        return result;
+    }
+
+    private void siftUp(int index, long key, int slot) {
+        while (index > 0) {
+            int parentIndex = (index - 1) / 2;
+            long parentKey = keys[parentIndex];
+            if (key <= parentKey) break;
+
+            keys[index] = parentKey;
+            slots[index] = slots[parentIndex];
+            index = parentIndex;
+        }
+        keys[index] = key;
+        slots[index] = slot;
+    }
+
+    private void siftDown(int index, long key, int slot) {
+        while (true) {
+            int childIndex = 2 * index + 1;
+            if (childIndex >= size) break;
+            if (childIndex + 1 < size && keys[childIndex + 1] > keys[childIndex]) childIndex++;
+            if (key >= keys[childIndex]) break;
+
+            keys[index] = keys[childIndex];
+            slots[index] = slots[childIndex];
+            index = childIndex;
+        }
+        keys[index] = key;
+        slots[index] = slot;
+    }
+
+    /*
+        Resize every array to capacity (size <= capacity)
+        - Used slots are renumbered 0..size-1, so a shrunk table holds them all; the others are free
+     */
+    private void resize(int capacity) {
+        Request[] newTable = new Request[capacity];
+        for (int i = 0; i < size; i++) {
+            newTable[i] = table[slots[i]];
+            slots[i] = i;
+        }
+
+        keys = Arrays.copyOf(keys, capacity);
+        slots = Arrays.copyOf(slots, capacity);
+        table = newTable;
+        for (int i = size; i < capacity; i++) slots[i] = i;
+    }
+
+    @Override
+    public synchronized int size() { return size; }
+
+    /*
+        Get the sorted list of requests in the queue
+        - Copy the keys and requests (the only step that holds the queue's lock)
+        - Heap sort the copy by key, moving the requests along, without blocking put() and take()
+
+        @return: A sorted list of requests in the queue, highest priority first
+     */
+    @Override
+    public List<Request> getQueue() {
+        long[] sortedKeys;
+        Request[] requests;
+        synchronized (this) {
+            sortedKeys = Arrays.copyOf(keys, size);
+            requests = new Request[size];
+            for (int i = 0; i < size; i++) requests[i] = table[slots[i]];
+        }
+
+        // The copy is already a max-heap: move the root to the end, repeatedly, for ascending order
+        for (int end = sortedKeys.length - 1; end > 0; end--) {
+            long key = sortedKeys[end];
+            Request request = requests[end];
+            sortedKeys[end] = sortedKeys[0];
+            requests[end] = requests[0];
+
+            int index = 0;
+            while (true) {
+                int childIndex = 2 * index + 1;
+                if (childIndex >= end) break;
+                if (childIndex + 1 < end && sortedKeys[childIndex + 1] > sortedKeys[childIndex]) childIndex++;
+                if (key >= sortedKeys[childIndex]) break;
+
+                sortedKeys[index] = sortedKeys[childIndex];
+                requests[index] = requests[childIndex];
+                index = childIndex;
+            }
+            sortedKeys[index] = key;
+            requests[index] = request;
+        }
+
+        List<Request> sorted = new ArrayList<>(requests.length);
+        for (int i = requests.length - 1; i >= 0; i--) sorted.add(requests[i]);
+        return sorted;
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Priority Policy
+    - Turns declarative rules into one precomputed long priority key per request, so heap comparisons are a
+      single primitive compare instead of instanceof and header lookups
+    - Every rule that matches a request adds its weight to the request's score. The key is
+        (score << SEQUENCE_BITS) | (SEQUENCE_MASK - sequence)
+      so a higher score always wins, and among equal scores the earlier request wins (FIFO)
+    - Rules are plain text, one per line, so priority classes can change without recompiling:
+        route <ClassName or route pattern> <weight>     e.g. route ShoppingRequest 2
+        header <Name> <weight>                          e.g. header Authorization 1
+        header <Name>=<value> <weight>                  e.g. header X-Tier=gold 4
+        method <METHOD> <weight>                        e.g. method POST 1
+        ip <address>/<prefix length> <weight>           e.g. ip 10.0.0.0/8 1
+      Blank lines and lines starting with '#' are ignored
+    - DEFAULT reproduces the original rules: ShoppingRequest first, then Authorization, then receive order
+ */
+public final class PriorityPolicy {
+    public static final int SEQUENCE_BITS = 40; // Low bits of the key, holding the inverted sequence number
+    public static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    public static final int MAX_SCORE = (1 << (63 - SEQUENCE_BITS)) - 1; // Scores are clamped to 0..MAX_SCORE
+
+    public static final PriorityPolicy DEFAULT = parse("""
+            route ShoppingRequest 2
+            header Authorization 1
+            """);
+
+    private final List<Rule> rules; // Rules, in file order
+    private final int maxScore; // Highest score a request can get
+
+    private PriorityPolicy(List<Rule> rules) {
+        this.rules = rules;
+
+        int max = 0;
+        for (Rule rule : rules) max += Math.max(0, rule.weight());
+        this.maxScore = Math.min(MAX_SCORE, max);
+    }
+
+    /*
+        Parse a policy from its text form
+
+        @param text: Rules, one per line
+        @return: The policy
+        @throws IllegalArgumentException if a line is not a valid rule
+     */
+    public static PriorityPolicy parse(String text) {
+        List<Rule> rules = new ArrayList<>();
+
+        for (String line : text.split("\n")) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3) throw new IllegalArgumentException("Expected '<kind> <match> <weight>': " + line);
+
+            int weight;
+            try {
+                weight = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight: " + line);
+            }
+
+            rules.add(switch (parts[0]) {
+                case "route" -> new Rule(Kind.ROUTE, parts[1], null, null, 0, weight);
+                case "header" -> {
+                    int equals = parts[1].indexOf('=');
+                    yield equals < 0
+                            ? new Rule(Kind.HEADER, parts[1], null, null, 0, weight)
+                            : new Rule(Kind.HEADER, parts[1].substring(0, equals), parts[1].substring(equals + 1), null, 0, weight);
+                }
+                case "method" -> new Rule(Kind.METHOD, parts[1], null, null, 0, weight);
+                case "ip" -> ipRule(parts[1], weight, line);
+                default -> throw new IllegalArgumentException("Unknown rule kind: " + line);
+            });
+        }
+
+        return new PriorityPolicy(rules);
+    }
+
+    /*
+        Load a policy from a file (see parse())
+     */
+    public static PriorityPolicy load(Path file) throws IOException {
+        return parse(Files.readString(file));
+    }
+
+    /*
+        Compute the priority key of a request
+        - Called once per request, when it is parsed (or on its first comparison)
+     */
+    public long key(Request request) {
+        return ((long) score(request) << SEQUENCE_BITS) | (SEQUENCE_MASK - (request.sequence & SEQUENCE_MASK));
+    }
+
+    /*
+        The sum of the weights of every matching rule, clamped to 0..MAX_SCORE
+     */
+    public int score(Request request) {
+        long score = 0;
+        for (Rule rule : rules) {
+            if (rule.matches(request)) score += rule.weight();
+        }
+        return (int) Math.max(0, Math.min(MAX_SCORE, score));
+    }
+
+    /*
+        The score part of a priority key
+     */
+    public static int score(long key) {
+        return (int) (key >>> SEQUENCE_BITS);
+    }
+
+    public int getMaxScore() { return maxScore; }
+
+    // ------------- Rules -------------
+
+    private enum Kind { ROUTE, HEADER, METHOD, IP }
+
+    /*
+        One rule
+        - name: class name or route pattern (ROUTE), header name (HEADER), method (METHOD)
+        - value: required header value, or null for presence only (HEADER)
+        - address / prefixLength: network to match (IP)
+     */
+    private record Rule(Kind kind, String name, String value, byte[] address, int prefixLength, int weight) {
+        boolean matches(Request request) {
+            switch (kind) {
+                case ROUTE:
+                    return name.equals(request.getClass().getSimpleName()) || name.equals(request.route);
+                case HEADER:
+                    return value == null ? request.getHeaders().containsKey(name) : value.equals(request.getHeaders().get(name));
+                case METHOD:
+                    return name.equals(request.method);
+                default:
+                    return request.clientSocket != null && request.clientSocket.getInetAddress() != null
+                            && inNetwork(request.clientSocket.getInetAddress().getAddress());
+            }
+        }
+
+        private boolean inNetwork(byte[] client) {
+            if (client.length != address.length) return false;
+
+            for (int bit = 0; bit < prefixLength; bit += 8) {
+                int bits = Math.min(8, prefixLength - bit);
+                int mask = (0xFF << (8 - bits)) & 0xFF;
+                if ((client[bit / 8] & mask) != (address[bit / 8] & mask)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static Rule ipRule(String network, int weight, String line) {
+        int slash = network.indexOf('/');
+        try {
+            byte[] address = InetAddress.getByName(slash < 0 ? network : network.substring(0, slash)).getAddress();
+            int prefixLength = slash < 0 ? address.length * 8 : Integer.parseInt(network.substring(slash + 1));
+            return new Rule(Kind.IP, network, null, address, prefixLength, weight);
+        } catch (UnknownHostException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid network: " + line);
+        }
+    }
+}
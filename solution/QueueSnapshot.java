@@ -0,0 +1,72 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Queue Snapshot
+    - Cached, already sorted view of a RequestQueue for the IndexRequest
+    - Rebuilt from getQueue() at most once every maxAgeMillis, no matter how often the page is requested
+    - Every snapshot is one consistent getQueue() result, numbered by a version that grows with each rebuild
+    - Only one thread rebuilds at a time; the others keep using the previous snapshot meanwhile
+    - Snapshots are immutable, so pages can be built from them without holding any lock
+ */
+public class QueueSnapshot {
+
+    /*
+        One snapshot of the queue
+        - requests: the queued requests, highest priority first (unmodifiable)
+        - version: number of the rebuild that created it
+        - createdAt: when it was taken (nanoTime)
+     */
+    public record Snapshot(List<Request> requests, long version, long createdAt) {}
+
+    private final RequestQueue requestQueue; // Queue the snapshots are taken of
+    private final long maxAgeNanos; // Age after which a snapshot is rebuilt
+    private final AtomicBoolean rebuilding = new AtomicBoolean(); // Whether a thread is rebuilding right now
+    private volatile Snapshot current; // Latest snapshot, null before the first one
+
+    /*
+        Constructor
+
+        @param requestQueue: Queue to take snapshots of
+        @param maxAgeMillis: How long a snapshot is reused before it is rebuilt
+     */
+    public QueueSnapshot(RequestQueue requestQueue, long maxAgeMillis) {
+        this.requestQueue = requestQueue;
+        this.maxAgeNanos = maxAgeMillis * 1_000_000;
+    }
+
+    /*
+        Get a recent snapshot
+        - Rebuilds it if it is older than maxAgeMillis and no other thread is already rebuilding it
+        - Only the very first call may wait for another thread's rebuild. If that rebuild fails, a waiting thread
+          takes over and rebuilds itself (a failed rebuild throws in its own thread only)
+
+        @return: A snapshot at most maxAgeMillis old (plus the time of one rebuild)
+     */
+    public Snapshot get() {
+        Snapshot snapshot = current;
+        if (snapshot != null && System.nanoTime() - snapshot.createdAt() < maxAgeNanos) return snapshot;
+
+        if (rebuilding.compareAndSet(false, true)) snapshot = rebuild(snapshot);
+
+        while (snapshot == null) { // First snapshot is being built by another thread
+            Thread.onSpinWait();
+            snapshot = current;
+            if (snapshot == null && rebuilding.compareAndSet(false, true)) snapshot = rebuild(current); // That rebuild failed
+        }
+        return snapshot;
+    }
+
+    /*
+        Take a new snapshot (only the thread that set rebuilding), then let other threads rebuild again
+     */
+    private Snapshot rebuild(Snapshot previous) {
+        try {
+            long version = previous == null ? 1 : previous.version() + 1;
+            return current = new Snapshot(Collections.unmodifiableList(requestQueue.getQueue()), version, System.nanoTime());
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+}
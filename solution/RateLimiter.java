@@ -0,0 +1,136 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Rate Limiter
+    - Limits every client (see Request.getClientKey(): its IP address) to a sustained number of requests per second,
+      with bursts of up to burst requests. Unvalidated Authorization tokens are not a client: a new token per request
+      would get a new, full bucket every time
+    - Applied in the parse stage: the acceptor checks every request as soon as it is parsed (see Connection.read()),
+      and a client over its rate gets a precomputed 429 and its connection closed, before the request reaches the
+      queue or costs a worker anything
+    - Token bucket, kept as one long per client: the time its bucket will be full again (the "theoretical arrival
+      time" of GCRA, the generic cell rate algorithm, which makes the same decisions as a token bucket)
+        - every allowed request moves it one interval (1 / rate) further
+        - a request is allowed if that leaves it at most burst intervals ahead of now
+        - a time in the past is a full bucket
+      A check is a map lookup and one CAS, no lock, so several acceptor threads check at once
+    - Striped, expiring map: clients are spread over STRIPES ConcurrentHashMaps by key. A client whose bucket is full
+      again is in exactly the state of a client never seen, so its entry can be dropped without changing any
+      decision. One stripe is swept every SWEEP_INTERVAL_NANOS, by whichever thread checks a request at that time
+      (no extra thread), so a sweep only walks 1/STRIPES of the clients, and memory follows the clients active within
+      the last burst window plus one pass over the stripes
+    - A sweep can drop a client while a check of that client is under way; the check then counts against the dropped
+      entry, and the client gains at most one request
+
+    Sample:
+        // 50 requests/s per client, bursts of up to 100
+        config.setRateLimiter(new RateLimiter(50, 100));
+ */
+public class RateLimiter {
+    public static final StaticResponse TOO_MANY_REQUESTS = new StaticResponse("429 Too Many Requests", "text/html",
+            "<html><body><h1>429 Too Many Requests</h1><p>Too many requests from this client, please slow down.</p></body></html>");
+
+    private static final int STRIPES = 256; // Maps the clients are spread over (a power of two)
+    private static final long SWEEP_INTERVAL_NANOS = 10_000_000; // One stripe per 10ms, every stripe every 2.56s
+
+    private final ConcurrentHashMap<String, AtomicLong>[] stripes; // Time each client's bucket is full again, by client key
+    private final long intervalNanos; // Time one request's token takes to come back (1 / rate)
+    private final long burstNanos; // How far ahead of now a bucket may be full again (burst * interval)
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime()); // When the next stripe is swept
+    private final AtomicInteger sweepStripe = new AtomicInteger(); // Stripe swept next (modulo STRIPES)
+
+    private final LongAdder allowed = new LongAdder(); // Requests let through
+    private final LongAdder limited = new LongAdder(); // Requests answered with a 429
+
+    /*
+        Constructor
+
+        @param requestsPerSecond: Sustained rate allowed per client
+        @param burst: Requests a client may send at once after being quiet (the bucket size)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RateLimiter(double requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0) throw new IllegalArgumentException("Rate must be positive: " + requestsPerSecond);
+        if (burst <= 0) throw new IllegalArgumentException("Burst must be positive: " + burst);
+
+        this.intervalNanos = Math.max(1, (long) (1e9 / requestsPerSecond));
+        this.burstNanos = burst * intervalNanos;
+        this.stripes = new ConcurrentHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ConcurrentHashMap<>();
+    }
+
+    /*
+        Take a token for the request's client
+
+        @return: Whether the request is within its client's rate (false: answer it with TOO_MANY_REQUESTS)
+     */
+    public boolean tryAcquire(Request request) {
+        return tryAcquire(request.getClientKey(), System.nanoTime());
+    }
+
+    /*
+        Take a token for a client at the given time (nanoTime)
+     */
+    boolean tryAcquire(String client, long now) {
+        sweepIfDue(now);
+
+        ConcurrentHashMap<String, AtomicLong> stripe = stripes[stripe(client)];
+        AtomicLong fullAt = stripe.get(client);
+        if (fullAt == null) { // A new client has a full bucket
+            fullAt = stripe.putIfAbsent(client, new AtomicLong(now + intervalNanos));
+            if (fullAt == null) {
+                allowed.increment();
+                return true;
+            }
+        }
+
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + intervalNanos;
+            if (next - now > burstNanos) {
+                limited.increment();
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                allowed.increment();
+                return true;
+            }
+        }
+    }
+
+    /*
+        Sweep the next stripe if it is time: drop the clients whose bucket is full again
+        - Only the thread that moves nextSweep on sweeps, the others go on right away
+     */
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) return;
+
+        int stripe = sweepStripe.getAndIncrement() & (STRIPES - 1);
+        stripes[stripe].values().removeIf(fullAt -> fullAt.get() - now <= 0);
+    }
+
+    private static int stripe(String client) {
+        // Top bits of a multiplicative hash: the maps index their buckets with the low bits of the same hashCode, so
+        // the stripe must not be taken from those (every key of a stripe would land in 1/STRIPES of its buckets)
+        return (client.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(STRIPES));
+    }
+
+    /*
+        Get the number of clients tracked right now (the ones whose bucket may not be full, and full ones not swept yet)
+     */
+    public int getClients() {
+        int clients = 0;
+        for (ConcurrentHashMap<String, AtomicLong> stripe : stripes) clients += stripe.size();
+        return clients;
+    }
+
+    // Getters
+    public double getRequestsPerSecond() { return 1e9 / intervalNanos; }
+    public int getBurst() { return (int) (burstNanos / intervalNanos); }
+    public long getAllowed() { return allowed.sum(); }
+    public long getLimited() { return limited.sum(); }
+}
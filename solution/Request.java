@@ -1,24 +1,54 @@
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
     Request (abstract)
     - Represents a request from a client
     - Has a
         - clientSocket - the socket the request came from
+        - connection - the keep-alive connection the request came from (null if parsed from a plain socket)
         - method - the HTTP method of the request
         - path - the path of the request
+        - query - the query string of the request (after the '?'), null if there is none
+        - route - the pattern of the route that matched the path, null if none did
+        - pathParams - the values of the route's path parameters
         - headers - a map of headers (key-value pairs)
         - receiveTime - the time the request was received (nanoTime)
+        - sequence - the order the request was created in (breaks priority ties, FIFO)
+        - priority - the priority key computed by the PriorityPolicy (see compareTo)
+        - clientKey - who sent the request, for rate limiting and fairness (see getClientKey)
  */
 public abstract class Request implements Comparable<Request> {
+    public static final Router router = new Router() // Routes from paths to the Request subclasses that handle them
+            .add("/", IndexRequest::new)
+            .add("/shopping", ShoppingRequest::new)
+            .add("/metrics", MetricsRequest::new);
+    public static PriorityPolicy policy = PriorityPolicy.DEFAULT; // Rules the priority keys are computed with
+
+    private static final AtomicLong sequenceCounter = new AtomicLong(); // Source of the sequence numbers
+    private static final long NO_PRIORITY = -1; // Priority key not computed yet
+
     protected Socket clientSocket; // The socket the request came from
+    protected Connection connection; // The keep-alive connection the request came from (null if parsed from a plain socket)
     protected String method, path; // The HTTP method and path of the request
-    protected Map<String, String> headers = new HashMap<>(); // The headers of the request
+    protected String query; // The query string of the request (after the '?'), null if there is none
+    protected String route; // The pattern of the route that matched the path, null if none did
+    protected Map<String, String> pathParams = Map.of(); // The values of the route's path parameters
+    protected Map<String, String> headers = Map.of(); // The headers of the request (a HashMap or a HeaderView once parsed)
     protected long receiveTime = System.nanoTime(); // The time the request was received
+    protected final long sequence = sequenceCounter.incrementAndGet(); // The order the request was created in
+    protected long priority = NO_PRIORITY; // Priority key, computed when the request is parsed (or when first compared)
+    protected String clientKey; // Who sent the request, computed on first use
 
     /*
         Parses a request from a client socket
@@ -47,8 +77,21 @@ public abstract class Request implements Comparable<Request> {
      */
     public static Request parse(Socket clientSocket) {
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            return parse(new BufferedReader(new InputStreamReader(clientSocket.getInputStream())), clientSocket);
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
+    /*
+        Parses a request head that is read from the given reader
+        - Used by parse(Socket) and by the SelectorAcceptor, which buffers the head itself before parsing it
+
+        Pre-condition: reader provides the request line and headers of clientSocket's request
+        Post-condition: Returns a Request object based on the path. Return null if the request is invalid
+     */
+    public static Request parse(BufferedReader reader, Socket clientSocket) {
+        try {
             String line;
             String method; String path;
 
@@ -61,20 +104,17 @@ public abstract class Request implements Comparable<Request> {
             method = parts[0];
             path = parts[1];
 
+            String query = null;
+            int queryStart = path.indexOf('?');
+            if (queryStart >= 0) {
+                query = path.substring(queryStart + 1);
+                path = path.substring(0, queryStart);
+            }
+
             if (!parts[2].equals("HTTP/1.1")) return null;
 
-            Request request;
-            switch (path) {
-                case "/":
-                    request = new IndexRequest();
-                    break;
-                case "/shopping":
-                    request = new ShoppingRequest();
-                    break;
-                default:
-                    request = new NotFoundRequest();
-                    break;
-            }
+            Request request = forPath(path);
+            request.headers = new HashMap<>();
 
             while ((line = reader.readLine()) != null) {
                 if (line.isEmpty()) {
@@ -89,6 +129,8 @@ public abstract class Request implements Comparable<Request> {
             request.clientSocket = clientSocket;
             request.method = method;
             request.path = path;
+            request.query = query;
+            request.priority = policy.key(request);
 
             return request; // Return the parsed request
 
@@ -97,6 +139,19 @@ public abstract class Request implements Comparable<Request> {
         }
     }
 
+    /*
+        Creates an empty request of the subclass that handles the path
+        - Looks the path up in the router; used by parse() (the RequestParser looks up the raw bytes itself)
+
+        @param path: The path of the request
+        @return: The Request subclass of the matching route, NotFoundRequest if there is none
+     */
+    static Request forPath(String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.ISO_8859_1);
+        int[] params = new int[2 * Router.MAX_PARAMS];
+        return Router.create(router.lookup(bytes, bytes.length, params), bytes, params);
+    }
+
     /*
         Processes the request
         - Abstract method to be implemented by subclasses
@@ -104,37 +159,216 @@ public abstract class Request implements Comparable<Request> {
      */
     abstract public void process();
 
+    /*
+        Sends a complete response and finishes the request
+        - Adds Content-Length and Connection headers, so the client knows where the response ends on a kept-alive connection
+        - Requests from a plain socket always get "Connection: close"
+
+        @param status: Status line after "HTTP/1.1 ", e.g. "200 OK"
+        @param contentType: Content-Type of the body
+        @param body: Response body
+     */
+    protected void send(String status, String contentType, String body) throws IOException {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        boolean keepAlive = connection != null && connection.keepAlive(this);
+
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + bodyBytes.length + "\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                "\r\n";
+
+        write(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), ByteBuffer.wrap(bodyBytes));
+        finish();
+    }
+
+    /*
+        Sends a precomputed response and finishes the request
+        - A single gathering write of the cached head and body buffers
+     */
+    protected void send(StaticResponse response) throws IOException {
+        write(response.buffers(connection != null && connection.keepAlive(this)));
+        finish();
+    }
+
+    /*
+        Starts a streamed response (see ChunkedResponseWriter)
+        - For bodies that are large, or built while walking something large: the body is sent in chunks as it is
+          written, with "Transfer-Encoding: chunked" instead of a Content-Length
+        - The head is sent with the first chunk; the request is finished by the writer's finish()
+
+        @param status: Status line after "HTTP/1.1 ", e.g. "200 OK"
+        @param contentType: Content-Type of the body
+     */
+    protected ChunkedResponseWriter stream(String status, String contentType) {
+        boolean keepAlive = connection != null && connection.keepAlive(this);
+
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                "\r\n";
+
+        return new ChunkedResponseWriter(this, ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    /*
+        Writes the buffers to the client
+        - Through the connection if there is one, otherwise through the socket's output stream
+        - A request replayed from a journal has neither: its client is gone, so the response is discarded
+     */
+    protected void write(ByteBuffer... buffers) throws IOException {
+        if (connection != null) {
+            connection.write(buffers);
+            return;
+        }
+        if (clientSocket == null) return;
+
+        WritableByteChannel out = Channels.newChannel(clientSocket.getOutputStream());
+        for (ByteBuffer b : buffers) {
+            while (b.hasRemaining()) out.write(b);
+        }
+    }
+
+    /*
+        Finishes the request once its response is written
+        - Hands a kept-alive connection back (which queues its next pipelined request), otherwise closes the socket
+     */
+    protected void finish() throws IOException {
+        if (connection != null) connection.complete();
+        else if (clientSocket != null) clientSocket.close();
+    }
+
+    /*
+        Abandons the request after a failed response
+        - Closes the connection or socket, without waiting for anything else on it
+     */
+    protected void abort() {
+        try {
+            if (connection != null) connection.close();
+            else if (clientSocket != null) clientSocket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /*
+        Rejects the request without processing it (load shedding)
+        - Sends the precomputed response with "Connection: close" and closes the connection, which also drops the
+          requests pipelined behind it
+        - Best effort: the response is written without waiting, a client that cannot take it right away just gets
+          closed (this often runs on the acceptor thread)
+     */
+    public void reject(StaticResponse response) {
+        try {
+            if (connection != null) connection.writeNow(response.buffers(false));
+            else if (clientSocket != null) write(response.buffers(false));
+        } catch (IOException ignored) {
+        } finally {
+            abort();
+        }
+    }
+
+    /*
+        Whether the client is gone (see DeadlineRequestQueue)
+        - Its connection was closed (reset, timed out, shed; the acceptor notices a reset)
+        - A client that only closed its side (half-close) still waits for its responses, which the connection
+          keeps serving, so that does not count
+        - Requests parsed from a plain socket only notice their own socket being closed
+     */
+    public boolean isDisconnected() {
+        if (connection != null) return connection.isClosed();
+        return clientSocket != null && clientSocket.isClosed();
+    }
+
+    /*
+        Whether the client closed its side of the connection (a FIN: a full close or a half-close)
+        - Only known for requests from a connection
+     */
+    public boolean isInputClosed() {
+        return connection != null && connection.isInputClosed();
+    }
+
     /*
         Compares two requests
-        - Compares based on the following criteria:
+        - Compares the precomputed priority keys (a single long compare, see PriorityPolicy)
+        - With the default policy, that is based on the following criteria:
             - ShoppingRequest > NotFoundRequest
             - Auth-Based Request > Non-Auth-Based Request
-            - Receive Time (FIFO)
+            - Creation order (FIFO)
         - Returns 1 if this request is greater, 0 if they are equal, -1 if this request is less
 
         Pre-condition: other is a valid Request object
      */
     public int compareTo(Request other) {
-        if (other instanceof ShoppingRequest ^ this instanceof ShoppingRequest)
-            return this instanceof ShoppingRequest ? 1 : -1;
+        return Long.compare(getPriority(), other.getPriority());
+    }
 
-        if (other.getHeaders().containsKey("Authorization") ^ this.getHeaders().containsKey("Authorization"))
-            return this.getHeaders().containsKey("Authorization") ? 1 : -1;
+    /*
+        Gets the priority key of the request
+        - Computed with the current policy on first use, and again after a setter changed what the rules look at
 
-        return Long.compare(other.receiveTime, this.receiveTime); // Reverse order (FIFO)
+        @return: The priority key (higher is served first)
+     */
+    public long getPriority() {
+        if (priority == NO_PRIORITY) priority = policy.key(this);
+        return priority;
+    }
+
+    /*
+        Gets the key of the client that sent the request (see RateLimiter and FairRequestQueue)
+        - The client's IP address, so clients behind one address (e.g. a NAT) share it
+        - Not the Authorization header: the server does not validate tokens, so a client could send a new one with
+          every request and be a new client each time, with a full bucket and a flow of its own
+        - "" for a request without a socket (e.g. replayed from a journal)
+
+        @return: The client key
+     */
+    public String getClientKey() {
+        if (clientKey == null) {
+            InetAddress address = clientSocket == null ? null : clientSocket.getInetAddress();
+            clientKey = address != null ? address.getHostAddress() : "";
+        }
+        return clientKey;
     }
 
     // Getters and Setters
+    public long getReceiveTime() { return receiveTime; }
+
     public Socket getClientSocket() { return clientSocket; }
-    public void setClientSocket(Socket clientSocket) { this.clientSocket = clientSocket; }
+    public void setClientSocket(Socket clientSocket) { this.clientSocket = clientSocket; this.priority = NO_PRIORITY; this.clientKey = null; }
+
+    public Connection getConnection() { return connection; }
 
     public String getMethod() { return method; }
-    public void setMethod(String method) { this.method = method; }
+    public void setMethod(String method) { this.method = method; this.priority = NO_PRIORITY; }
 
     public String getPath() { return path; }
     public void setPath(String path) { this.path = path; }
 
+    public String getRoute() { return route; }
+
+    public Map<String, String> getPathParams() { return pathParams; }
+
+    public String getQuery() { return query; }
+    public void setQuery(String query) { this.query = query; }
+
+    /*
+        Gets a parameter from the query string
+        - For "page=2&size=50", getQueryParameter("page") returns "2"
+
+        @return: The value of the first parameter with the name, or null if there is none
+     */
+    public String getQueryParameter(String name) {
+        if (query == null) return null;
+
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            if (key.equals(name)) return equals < 0 ? "" : pair.substring(equals + 1);
+        }
+        return null;
+    }
+
     public Map<String, String> getHeaders() { return headers; }
-    public void setHeaders(Map<String, String> headers) { this.headers = headers; }
+    public void setHeaders(Map<String, String> headers) { this.headers = headers; this.priority = NO_PRIORITY; }
 
 }
@@ -0,0 +1,161 @@
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+    Request Parser
+    - Byte-level parser for request heads, working directly on the acceptor's ByteBuffer
+    - Does the same job as Request.parse(), without a Reader, String.split() or a HashMap per request:
+        - The request line is copied into preallocated method / path / version arrays
+        - Header offsets are collected in a preallocated int[]
+        - The path is looked up in Request.router straight from the path bytes
+        - Known methods and exact route paths map to shared String constants, so the common case creates no Strings
+        - The request gets a HeaderView (one byte[] copy of the header lines) instead of a HashMap
+    - Keeps its state between calls, so one parser belongs to one thread (the acceptor)
+ */
+public final class RequestParser {
+    private static final int MAX_METHOD = 16, MAX_PATH = 2048, MAX_VERSION = 16; // Longest accepted request line parts
+    private static final int MAX_HEADERS = 64; // Most headers accepted per request
+
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.ISO_8859_1);
+    private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH" };
+
+    private final byte[] method = new byte[MAX_METHOD], path = new byte[MAX_PATH], version = new byte[MAX_VERSION];
+    private int methodLength, pathLength, versionLength;
+    private final int[] offsets = new int[4 * MAX_HEADERS]; // Per header: name start, name end, value start, value end
+    private final int[] params = new int[2 * Router.MAX_PARAMS]; // Per path parameter: start, end
+
+    /*
+        Find the end of the request head (the empty line)
+
+        @param buffer: Buffer in read mode (position to limit holds the received bytes)
+        @return: Index just past the empty line, or -1 if the head is not complete yet
+     */
+    public static int headEnd(ByteBuffer buffer) {
+        int end = buffer.limit();
+        for (int i = buffer.position() + 1; i < end; i++) {
+            if (buffer.get(i) != '\n') continue;
+            if (buffer.get(i - 1) == '\n') return i + 1; // "\n\n"
+            if (i >= buffer.position() + 3 && buffer.get(i - 1) == '\r' && buffer.get(i - 2) == '\n' && buffer.get(i - 3) == '\r') return i + 1; // "\r\n\r\n"
+        }
+        return -1;
+    }
+
+    /*
+        Parses one request head from the buffer
+        - Advances the buffer's position past the head, even if the head is invalid
+        - Header lines are "Name: Value", with any number of spaces after the colon
+
+        Pre-condition: buffer is in read mode and headEnd(buffer) >= 0
+        Post-condition: Returns a Request object based on the path. Return null if the request is invalid
+     */
+    public Request parse(ByteBuffer buffer, Socket clientSocket) {
+        int start = buffer.position();
+        int end = headEnd(buffer);
+        buffer.position(end);
+
+        // Request line, in the format: "METHOD /path HTTP/1.1"
+        int lineEnd = lineEnd(buffer, start);
+        int contentEnd = trimCr(buffer, start, lineEnd);
+
+        int space1 = indexOf(buffer, start, contentEnd, (byte) ' ');
+        int space2 = space1 < 0 ? -1 : indexOf(buffer, space1 + 1, contentEnd, (byte) ' ');
+        if (space2 < 0 || indexOf(buffer, space2 + 1, contentEnd, (byte) ' ') >= 0) return null;
+
+        methodLength = copy(buffer, start, space1, method);
+        pathLength = copy(buffer, space1 + 1, space2, path);
+        versionLength = copy(buffer, space2 + 1, contentEnd, version);
+        if (methodLength <= 0 || pathLength <= 0 || !matches(version, versionLength, HTTP_1_1)) return null;
+
+        int queryStart = 0; // The query string ("?a=b") is kept apart from the path
+        while (queryStart < pathLength && path[queryStart] != '?') queryStart++;
+
+        Router.Route route = Request.router.lookup(path, queryStart, params);
+        Request request = Router.create(route, path, params);
+        String pathString = route != null && route.isExact() ? route.pattern() : new String(path, 0, queryStart, StandardCharsets.ISO_8859_1);
+        if (queryStart < pathLength) request.query = new String(path, queryStart + 1, pathLength - queryStart - 1, StandardCharsets.ISO_8859_1);
+
+        // Headers, in the format: "Header: Value"
+        int headerStart = lineEnd + 1, lineStart = headerStart, count = 0;
+        while (true) {
+            lineEnd = lineEnd(buffer, lineStart);
+            contentEnd = trimCr(buffer, lineStart, lineEnd);
+            if (contentEnd == lineStart) break; // Empty line, end of the head
+
+            int colon = indexOf(buffer, lineStart, contentEnd, (byte) ':');
+            if (colon <= lineStart || count == MAX_HEADERS) return null;
+
+            int valueStart = colon + 1;
+            while (valueStart < contentEnd && buffer.get(valueStart) == ' ') valueStart++;
+
+            offsets[4 * count] = lineStart - headerStart;
+            offsets[4 * count + 1] = colon - headerStart;
+            offsets[4 * count + 2] = valueStart - headerStart;
+            offsets[4 * count + 3] = contentEnd - headerStart;
+            count++;
+
+            lineStart = lineEnd + 1;
+        }
+
+        byte[] headerBytes = new byte[lineStart - headerStart];
+        buffer.get(headerStart, headerBytes);
+
+        request.headers = new HeaderView(headerBytes, Arrays.copyOf(offsets, 4 * count), count);
+        request.clientSocket = clientSocket;
+        request.method = constant(method, methodLength, METHODS);
+        request.path = pathString;
+        request.priority = Request.policy.key(request);
+
+        return request; // Return the parsed request
+    }
+
+    /*
+        Index of the '\n' ending the line that starts at from
+        - Always found, since the head ends with an empty line
+     */
+    private static int lineEnd(ByteBuffer buffer, int from) {
+        while (buffer.get(from) != '\n') from++;
+        return from;
+    }
+
+    private static int trimCr(ByteBuffer buffer, int lineStart, int lineEnd) {
+        return lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    /*
+        Copy buffer[from, to) into target
+
+        @return: Number of bytes copied, or -1 if they do not fit
+     */
+    private static int copy(ByteBuffer buffer, int from, int to, byte[] target) {
+        if (to - from > target.length) return -1;
+        buffer.get(from, target, 0, to - from);
+        return to - from;
+    }
+
+    private static boolean matches(byte[] bytes, int length, byte[] expected) {
+        return length == expected.length && Arrays.equals(bytes, 0, length, expected, 0, length);
+    }
+
+    /*
+        The shared constant equal to the bytes, or a new String if there is none
+     */
+    private static String constant(byte[] bytes, int length, String[] constants) {
+        for (String constant : constants) {
+            if (constant.length() != length) continue;
+
+            int i = 0;
+            while (i < length && bytes[i] == constant.charAt(i)) i++;
+            if (i == length) return constant;
+        }
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
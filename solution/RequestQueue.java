@@ -1,125 +1,132 @@
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /*
     Request Queue
-    - This class is responsible for storing incoming requests in a priority queue.
-    - It should have a method to add a request to the queue.
-    - It should have a method to get the next request from the queue. This method should block until a request is available.
-    - It should have a method to get the sorted list of requests in the queue.
+    - Stores incoming requests in priority order (highest Request.compareTo first, FIFO among equals)
+    - put() is called by the acceptor, take() by the workers, getQueue() by the IndexRequest
+    - Batches: the acceptor hands over everything it parsed in one selector pass with putAll(), and busy workers
+      take several requests at once with takeBatch(), so the queue's lock is taken once per batch
+    - Implementations:
+        - HeapRequestQueue: a binary heap behind one monitor (default)
+        - PrimitiveHeapRequestQueue: the same heap as primitive key and slot arrays, for deep queues
+        - LaneRequestQueue: one lock-free FIFO lane per priority class
+        - AgingRequestQueue: raises priority with waiting time, with a maximum queueing delay per class
+        - FairRequestQueue: strict priority across classes, deficit round robin across the clients within a class
+        - BoundedRequestQueue: caps another queue and sheds load once it is full
+        - WorkStealingRequestQueue: one local queue per worker, with approximate priority order
+        - DeadlineRequestQueue: wraps another queue and skips requests that expired or whose client disconnected
+        - JournaledRequestQueue: wraps another queue and writes its requests to disk, so they survive a restart
  */
-public class RequestQueue {
-    private final ArrayList<Request> heap = new ArrayList<>(); // Heap to store the requests
+public interface RequestQueue {
 
     /*
         Add a request to the queue
-        - Add the request to the heap
-        - Reorder the heap to maintain the priority queue property
-        - Notify the waiting threads (if any w/ take())
+        - Wakes up a waiting take() (if any)
 
         @param request: Request object to be added to the queue
         Post-condition: The request is added to the queue
      */
-    public synchronized void put(Request request) {
-        heap.add(request);
-        int index = heap.size() - 1;
-
-        while (index > 0) {
-            int parentIndex = (index - 1) / 2;
-            Request parent = heap.get(parentIndex);
-            if (request.compareTo(parent) <= 0) {
-                break;
-            }
-            heap.set(index, parent);
-            index = parentIndex;
-        }
-
-        heap.set(index, request);
-
-        this.notify();
-    }
-
+    void put(Request request);
 
     /*
         Get the next request from the queue
-        - Wait until a request is available (if the queue is empty)
-        - Remove the request from the heap
-        - Reorder the heap to maintain the priority queue property
-        - Return the request
+        - Removes and returns the highest priority request
 
         @return: The next request from the queue. This method should block until a request is available. Return null if interrupted.
      */
-    public synchronized Request take() {
-        try {
-            if (heap.isEmpty()) this.wait();
-        } catch (InterruptedException e) { return null; }
+    Request take();
 
-        Request result = heap.get(0);
-        Request last = heap.remove(heap.size() - 1);
+    /*
+        Get the next request from the queue, waiting at most the timeout for one
 
-        if (!heap.isEmpty()) {
-            heap.set(0, last);
-            int index = 0;
+        @return: The next request, or null if the timeout passed or the thread was interrupted (the interrupt stays set)
+     */
+    Request poll(long timeout, TimeUnit unit);
 
-            while (true) {
-                int leftChildIndex = 2 * index + 1;
-                if (leftChildIndex >= heap.size()) break;
+    /*
+        Move up to max of the highest priority requests to out, highest first (never blocks)
 
-                int rightChildIndex = leftChildIndex + 1;
-                int minChildIndex = rightChildIndex >= heap.size() || heap.get(leftChildIndex).compareTo(heap.get(rightChildIndex)) > 0 ? leftChildIndex : rightChildIndex;
+        @return: The number of requests moved
+     */
+    int drainTo(Collection<? super Request> out, int max);
 
-                if (last.compareTo(heap.get(minChildIndex)) >= 0) break;
+    /*
+        Wait at most the timeout for a request, then take up to max requests, highest priority first
+        - The batch is a prefix of the queue's order when it is taken, and the next batch continues from there
+        - Queues behind one monitor override it to wait and drain under a single lock
 
-                heap.set(index, heap.get(minChildIndex));
-                index = minChildIndex;
-            }
+        @return: The requests taken, empty if the timeout passed. Return null if interrupted.
+     */
+    default List<Request> takeBatch(int max, long timeout, TimeUnit unit) {
+        Request first = poll(timeout, unit);
+        if (first == null) return Thread.currentThread().isInterrupted() ? null : List.of();
+
+        List<Request> batch = new ArrayList<>(Math.min(max, 16));
+        batch.add(first);
+        if (max > 1) drainTo(batch, max - 1);
+        return batch;
+    }
 
-            heap.set(index, last);
-        }
+    /*
+        Add several requests at once, e.g. the ones the acceptor parsed in one selector pass
+        - Queues behind one monitor override it to add them all under a single lock
 
-        return result;
+        @param requests: Requests to be added to the queue
+        Post-condition: Every request is added to the queue (or shed, see BoundedRequestQueue)
+     */
+    default void putAll(Collection<? extends Request> requests) {
+        for (Request r : requests) put(r);
     }
 
     /*
-        Get the sorted list of requests in the queue
-        - Create a copy of the heap
-        - Perform a heap sort on the copy
-        - Return the sorted list
+        Remove the lowest priority request, e.g. to make room for a higher priority one
 
-        @return: A sorted list of requests in the queue
+        @return: The lowest priority request, or null if the queue is empty (never blocks)
      */
-    public synchronized List<Request> getQueue() {
-        List<Request> sortedHeap = new ArrayList<>(heap);
-
-        for (int i = sortedHeap.size() / 2 - 1; i >= 0; i--) {
-            heapify(sortedHeap, sortedHeap.size(), i);
-        }
+    Request pollLowest();
 
-        for (int i = sortedHeap.size() - 1; i > 0; i--) {
-            Request temp = sortedHeap.get(0);
-            sortedHeap.set(0, sortedHeap.get(i));
-            sortedHeap.set(i, temp);
+    /*
+        Get the number of queued requests
+     */
+    int size();
 
-            heapify(sortedHeap, i, 0);
-        }
+    /*
+        Whether the queue wants the acceptor to stop accepting connections for now (see BoundedRequestQueue)
+     */
+    default boolean isSaturated() { return false; }
 
-        return sortedHeap;
-    }
+    /*
+        A request that came out of the queue is done: answered, shed, or dropped
+        - Called by the worker after process(), and by whatever sheds a request it took or polled from the queue
+        - Only queues that track requests beyond take() use it (JournaledRequestQueue); queues that wrap another
+          pass it on
+        - A queue that sheds requests itself completes them through its owner (see setOwner()), so every wrapper
+          around it sees the completion, not only the ones inside it
+     */
+    default void complete(Request request) {}
 
-    private void heapify(List<Request> arr, int n, int i) {
-        int leftChildIndex = 2 * i + 1;
-        int rightChildIndex = 2 * i + 2;
+    /*
+        Tell the queue which queue wraps it from the outside (the one the server calls)
+        - Called by every wrapper's constructor with itself, and passed on inwards when the wrapper is wrapped in turn,
+          so each queue of a chain knows the outermost one
+        - Queues that shed requests (BoundedRequestQueue, DeadlineRequestQueue) complete them with owner.complete()
+     */
+    default void setOwner(RequestQueue owner) {}
 
-        int smallest;
-        smallest = leftChildIndex < n && arr.get(leftChildIndex).compareTo(arr.get(i)) < 0 ? leftChildIndex : i;
-        smallest = rightChildIndex < n && arr.get(rightChildIndex).compareTo(arr.get(smallest)) < 0 ? rightChildIndex : smallest;
+    /*
+        The server stopped: no more put() or take() (queues that wrap another pass it on)
+        - Whatever is still queued afterwards is removed with pollLowest() and completed (see Server.stop()), so a
+          queue that holds requests back (JournaledRequestQueue) hands them over here
+     */
+    default void close() {}
 
-        if (smallest != i) {
-            Request temp = arr.get(i);
-            arr.set(i, arr.get(smallest));
-            arr.set(smallest, temp);
+    /*
+        Get the sorted list of requests in the queue
 
-            heapify(arr, n, smallest);
-        }
-    }
+        @return: A list of the queued requests, highest priority first
+     */
+    List<Request> getQueue();
 }
@@ -0,0 +1,232 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Router
+    - Maps request paths to the factory of the Request subclass that handles them
+    - Three kinds of routes:
+        - Exact: "/shopping"
+        - Path parameters: "/items/{id}" (a parameter matches one whole segment, up to the next '/')
+        - Prefix: "/static/*" (matches "/static/" and everything below it, no parameters)
+    - On a conflict, exact characters beat a parameter, and a parameter beats a prefix; the longest prefix wins
+    - Routes are compiled into a character trie with sorted child arrays, so lookup walks the path once, byte by byte,
+      and allocates nothing (parameter positions go into an int[] from the caller)
+    - add() only records the route and marks the trie stale; the next lookup compiles it, once for any number of
+      add() calls in a row (registering N routes is not N compiles). Lookups that find the trie stale wait for that
+      compile, so a route is matched by every lookup after its add() (routes are normally all added at startup)
+    - A compiled trie is never changed, so lookups read it without locking
+ */
+public final class Router {
+    public static final int MAX_PARAMS = 8; // Most path parameters in one route
+
+    /*
+        Creates an empty request for a matched route
+     */
+    public interface Factory {
+        Request create();
+    }
+
+    /*
+        A registered route
+        - pattern: the registered path, e.g. "/items/{id}" (also used as the route's label)
+        - paramNames: names of the path parameters, in path order
+        - prefix: whether the route matches everything below it
+     */
+    public record Route(String pattern, Factory factory, String[] paramNames, boolean prefix) {
+        /*
+            Whether the route matches exactly one path (its pattern), so the pattern can stand in for the path
+         */
+        public boolean isExact() { return !prefix && paramNames.length == 0; }
+    }
+
+    private final List<Route> routes = new ArrayList<>(); // Registered routes, in order
+    private volatile Node root = new Node(); // Compiled trie, null when routes were added since the last compile
+
+    /*
+        Register a route (compiled into the trie on the next lookup)
+        - A pattern that is already registered is replaced
+
+        @param pattern: Exact path, path with {parameters}, or prefix ending in "/*"
+        @param factory: Creates the Request subclass for the route
+        @return: The router, so calls can be chained
+     */
+    public synchronized Router add(String pattern, Factory factory) {
+        boolean prefix = pattern.endsWith("/*");
+        String path = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+
+        List<String> paramNames = new ArrayList<>();
+        for (int i = path.indexOf('{'); i >= 0; i = path.indexOf('{', i)) {
+            int close = path.indexOf('}', i);
+            if (close < 0) throw new IllegalArgumentException("Unclosed parameter in " + pattern);
+            paramNames.add(path.substring(i + 1, close));
+            i = close;
+        }
+        if (paramNames.size() > MAX_PARAMS) throw new IllegalArgumentException("Too many parameters in " + pattern);
+        if (prefix && !paramNames.isEmpty()) throw new IllegalArgumentException("Prefix routes cannot have parameters: " + pattern);
+
+        routes.removeIf(r -> r.pattern().equals(pattern));
+        routes.add(new Route(pattern, factory, paramNames.toArray(new String[0]), prefix));
+
+        root = null;
+        return this;
+    }
+
+    /*
+        Find the route for a path
+
+        @param path: Path bytes (without the query string)
+        @param length: Number of bytes of path to use
+        @param params: Receives the start and end offset of every path parameter (2 * MAX_PARAMS long)
+        @return: The matching route, or null if there is none
+     */
+    public Route lookup(byte[] path, int length, int[] params) {
+        Node trie = root;
+        if (trie == null) trie = compiled();
+        return match(trie, path, 0, length, params, 0);
+    }
+
+    /*
+        Get the trie, compiling it first if routes were added since the last compile
+     */
+    private synchronized Node compiled() {
+        if (root == null) root = compile();
+        return root;
+    }
+
+    /*
+        Create the request for a looked up route
+        - Decodes the path parameters (the only allocation besides the request, and only for parameter routes)
+
+        @return: The route's Request subclass, or a NotFoundRequest if there is no route
+     */
+    public static Request create(Route route, byte[] path, int[] params) {
+        if (route == null) return new NotFoundRequest();
+
+        Request request = route.factory().create();
+        request.route = route.pattern();
+
+        if (route.paramNames().length > 0) {
+            Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < route.paramNames().length; i++) {
+                values.put(route.paramNames()[i], new String(path, params[2 * i], params[2 * i + 1] - params[2 * i], StandardCharsets.ISO_8859_1));
+            }
+            request.pathParams = values;
+        }
+        return request;
+    }
+
+    // ------------- Trie -------------
+
+    /*
+        Trie node
+        - keys / children: literal next bytes, sorted for binary search
+        - param: child for a parameter segment
+        - exact: route ending at this node
+        - prefix: prefix route starting at this node
+     */
+    private static final class Node {
+        byte[] keys = new byte[0];
+        Node[] children = new Node[0];
+        Node param;
+        Route exact, prefix;
+    }
+
+    /*
+        Walk the trie
+        - A full (exact or parameter) match beats any prefix, and the literal child is tried before the parameter child
+        - Without a full match, the deepest prefix route on the way wins
+     */
+    private static Route match(Node node, byte[] path, int i, int length, int[] params, int paramCount) {
+        if (i == length && node.exact != null) return node.exact;
+
+        Route best = null; // Deepest prefix route found below this node
+        if (i < length) {
+            int child = binarySearch(node.keys, path[i]);
+            if (child >= 0) {
+                best = match(node.children[child], path, i + 1, length, params, paramCount);
+                if (best != null && !best.prefix()) return best;
+            }
+
+            if (node.param != null && path[i] != '/') {
+                int end = i;
+                while (end < length && path[end] != '/') end++;
+
+                params[2 * paramCount] = i;
+                params[2 * paramCount + 1] = end;
+                Route r = match(node.param, path, end, length, params, paramCount + 1);
+                if (r != null && !r.prefix()) return r;
+                if (best == null) best = r;
+            }
+        }
+
+        return best != null ? best : node.prefix;
+    }
+
+    private static int binarySearch(byte[] keys, byte key) {
+        int low = 0, high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) low = mid + 1;
+            else if (keys[mid] > key) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /*
+        Build the trie from the registered routes
+        - Built with TreeMaps first, then frozen into sorted arrays
+     */
+    private Node compile() {
+        BuildNode buildRoot = new BuildNode();
+
+        for (Route route : routes) {
+            String path = route.prefix() ? route.pattern().substring(0, route.pattern().length() - 1) : route.pattern();
+
+            BuildNode node = buildRoot;
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c == '{') {
+                    if (node.param == null) node.param = new BuildNode();
+                    node = node.param;
+                    i = path.indexOf('}', i);
+                } else {
+                    node = node.children.computeIfAbsent((byte) c, k -> new BuildNode());
+                }
+            }
+
+            if (route.prefix()) node.prefix = route;
+            else node.exact = route;
+        }
+
+        return buildRoot.freeze();
+    }
+
+    private static final class BuildNode {
+        final TreeMap<Byte, BuildNode> children = new TreeMap<>();
+        BuildNode param;
+        Route exact, prefix;
+
+        Node freeze() {
+            Node node = new Node();
+            node.exact = exact;
+            node.prefix = prefix;
+
+            node.keys = new byte[children.size()];
+            node.children = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Byte, BuildNode> child : children.entrySet()) {
+                node.keys[i] = child.getKey();
+                node.children[i] = child.getValue().freeze();
+                i++;
+            }
+
+            if (param != null) node.param = param.freeze();
+            return node;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Router Benchmark
+    - Measures Router.lookup as the number of routes grows from 10 to 10,000
+    - A third of the routes are exact ("/page17"), a third have a parameter ("/api/r17/{id}"), a third are prefixes ("/static17/*")
+    - Compares against a linear scan that tries every route pattern in registration order, which is what a growing
+      if/switch chain amounts to
+
+    Usage: java RouterBenchmark
+ */
+public class RouterBenchmark {
+    private static final int LOOKUPS = 1024; // Distinct paths looked up per iteration
+
+    public static void main(String[] args) {
+        System.out.println("------------- Router.lookup -------------");
+
+        for (int routes : new int[] { 10, 100, 1_000, 10_000 }) {
+            Router router = new Router();
+            List<String> patterns = new ArrayList<>();
+            for (int i = 0; i < routes; i++) {
+                String pattern = switch (i % 3) {
+                    case 0 -> "/page" + i;
+                    case 1 -> "/api/r" + i + "/{id}";
+                    default -> "/static" + i + "/*";
+                };
+                router.add(pattern, NotFoundRequest::new);
+                patterns.add(pattern);
+            }
+
+            byte[][] paths = paths(routes);
+            int[] params = new int[2 * Router.MAX_PARAMS];
+
+            Bench.run("Trie   " + routes + " routes", 5, 10, () -> {
+                for (int n = 0; n < 100; n++) {
+                    for (byte[] path : paths) {
+                        Bench.sink = router.lookup(path, path.length, params);
+                    }
+                }
+                return 100L * paths.length;
+            });
+
+            Bench.run("Linear " + routes + " routes", 2, 5, () -> {
+                for (byte[] path : paths) {
+                    Bench.sink = linearLookup(patterns, path);
+                }
+                return paths.length;
+            });
+        }
+    }
+
+    /*
+        Paths spread over all the routes, plus some that match nothing
+     */
+    private static byte[][] paths(int routes) {
+        Random random = new Random(42);
+        byte[][] paths = new byte[LOOKUPS][];
+
+        for (int n = 0; n < LOOKUPS; n++) {
+            int i = random.nextInt(routes);
+            String path = switch (n % 4) {
+                case 0 -> "/page" + (i - i % 3);
+                case 1 -> "/api/r" + (i - i % 3 + 1) + "/12345";
+                case 2 -> "/static" + (i - i % 3 + 2) + "/css/site.css";
+                default -> "/missing/" + i;
+            };
+            paths[n] = path.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return paths;
+    }
+
+    /*
+        Baseline: try every pattern in order
+     */
+    private static String linearLookup(List<String> patterns, byte[] path) {
+        for (String pattern : patterns) {
+            if (matches(pattern, path)) return pattern;
+        }
+        return null;
+    }
+
+    private static boolean matches(String pattern, byte[] path) {
+        int p = 0, i = 0;
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') return true;
+            if (c == '{') {
+                if (i >= path.length || path[i] == '/') return false;
+                while (i < path.length && path[i] != '/') i++;
+                p = pattern.indexOf('}', p) + 1;
+                continue;
+            }
+            if (i >= path.length || path[i] != c) return false;
+            p++;
+            i++;
+        }
+        return i == path.length;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Selector Acceptor
+    - Accepts incoming connections on a non-blocking ServerSocketChannel
+    - Reads the request heads of every connection incrementally, so one slow client cannot stall the others
+    - Only hands fully parsed requests to the RequestQueue (through the Connection, which keeps responses in order)
+    - The requests parsed in one selector pass are queued together with putAll(), one lock for the whole pass
+    - Heads are read into pooled direct buffers and parsed in place by a RequestParser
+    - Writes the response bytes a slow client's socket did not take, once its channel is writable (OP_WRITE)
+    - Keeps connections open between requests (HTTP/1.1 keep-alive) and closes the ones idle for too long, stuck
+      in a head, or not reading their response
+ */
+public class SelectorAcceptor implements Runnable {
+    private static final long SWEEP_INTERVAL_MILLIS = 1000; // How often idle connections are looked for
+    private static final long PAUSED_SELECT_MILLIS = 10; // How often a saturated queue is checked again
+
+    private final ServerSocketChannel serverChannel; // Listening channel (non-blocking)
+    private final RequestQueue requestQueue; // Queue to hand the parsed requests to
+    private final ServerConfig config; // Keep-alive settings
+    private final Selector selector; // Selector watching the listening channel and every open connection
+    private final RequestParser parser = new RequestParser(); // Parser for completed heads (only used by the acceptor thread)
+    private final List<Request> parsed = new ArrayList<>(); // Requests parsed in the current selector pass (acceptor thread)
+    private final AtomicInteger writing = new AtomicInteger(); // Connections with response output pending
+    private volatile boolean draining; // Set by drain(), handled by the acceptor thread
+
+    /*
+        Constructor
+        - Opens the selector used for accepting and reading
+
+        @param serverChannel: Bound channel to accept connections on
+        @param requestQueue: Queue to add the parsed requests to
+        @param config: Keep-alive timeout and requests per connection
+     */
+    public SelectorAcceptor(ServerSocketChannel serverChannel, RequestQueue requestQueue, ServerConfig config) throws IOException {
+        this.serverChannel = serverChannel;
+        this.requestQueue = requestQueue;
+        this.config = config;
+        this.selector = Selector.open();
+    }
+
+    /*
+        Acceptor loop
+        - Waits until the listening channel or a connection is ready
+        - Accepts new connections and registers them for reading
+        - Writes pending output of writable connections (a finished response may release a pipelined request)
+        - Reads ready connections, which parse every complete request head, then queues the new ones in one batch
+          (a request shed by a bounded queue closes its connection)
+        - Closes expired connections once in a while
+        - Stops accepting while the queue is saturated (backpressure), and resumes once it drained
+        - Once drain() was called, stops accepting and reading for good, but keeps the connections with a request in
+          flight open so their responses can still be written
+        - Stops when the thread is interrupted (Thread.interrupt() wakes up the selector)
+     */
+    @Override
+    public void run() {
+        try {
+            serverChannel.configureBlocking(false);
+            SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            boolean paused = false; // Whether accepting is paused for backpressure
+            boolean drained = false; // Whether drain() was handled
+
+            long lastSweep = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(paused ? PAUSED_SELECT_MILLIS : SWEEP_INTERVAL_MILLIS);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable()) connection.flush(parsed);
+                    if (key.isValid() && key.isReadable() && !connection.read(parser, parsed) && key.isValid()) {
+                        key.interestOpsAnd(~SelectionKey.OP_READ); // Closed, or the client closed its side: nothing more to read
+                    }
+                }
+
+                if (!parsed.isEmpty()) {
+                    requestQueue.putAll(parsed); // Add the requests to the queue
+                    parsed.clear();
+                }
+
+                if (draining && !drained) {
+                    drainConnections(acceptKey);
+                    drained = true;
+                } else if (!drained && requestQueue.isSaturated() != paused) {
+                    paused = !paused;
+                    acceptKey.interestOps(paused ? 0 : SelectionKey.OP_ACCEPT);
+                }
+
+                long now = System.nanoTime();
+                if (now - lastSweep > SWEEP_INTERVAL_MILLIS * 1_000_000) {
+                    closeExpired(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException e) {
+            if (!draining && serverChannel.isOpen()) Log.error("Acceptor failed", e);
+        } finally {
+            close();
+        }
+    }
+
+    /*
+        Accept every pending connection
+        - Each connection is attached to its selection key
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            new Connection(channel, requestQueue, config.getMaxRequestsPerConnection(), config.getRateLimiter()).register(selector, writing);
+        }
+    }
+
+    /*
+        Stop taking in new requests for a shutdown (any thread)
+        - Handled by the acceptor thread, which is woken up for it
+     */
+    public void drain() {
+        draining = true;
+        selector.wakeup();
+    }
+
+    /*
+        Whether a connection still has response output to write (any thread)
+        - After the workers stopped, the server keeps the acceptor running until this is false (or its deadline)
+     */
+    public boolean isWriting() {
+        return writing.get() > 0;
+    }
+
+    /*
+        Stop accepting and reading (acceptor thread)
+        - Closes the listening channel, so new clients are refused right away
+        - Every connection stops being read from; idle ones are closed, the others close after their response (its
+          pending output is still written)
+     */
+    private void drainConnections(SelectionKey acceptKey) throws IOException {
+        acceptKey.cancel();
+        serverChannel.close();
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Connection connection) {
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+                connection.drain();
+            }
+        }
+    }
+
+    /*
+        Close the expired connections (see Connection.isExpired())
+        - Idle for longer than the keep-alive timeout, a head taking too long, or a client not reading its response
+     */
+    private void closeExpired(long now) {
+        long timeoutNanos = config.getKeepAliveTimeoutMillis() * 1_000_000;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection && connection.isExpired(now, timeoutNanos)) {
+                connection.close();
+            }
+        }
+    }
+
+    /*
+        Close the selector and every open connection
+     */
+    private void close() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) connection.close();
+            }
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+}
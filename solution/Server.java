@@ -1,5 +1,7 @@
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 
 /*
     Server Class:
@@ -8,85 +10,184 @@ import java.net.ServerSocket;
     - It deals with the request queue that you will have to implement
  */
 public class Server {
-    private final ServerSocket serverSocket; // ServerSocket object to listen for incoming connections
-    private Thread serverThread; // Thread to handle incoming requests
-    private Thread[] workerThreads; // Fixed pool of worker threads to process the requests
-    private final RequestQueue requestQueue = new RequestQueue(); // Request queue to store incoming requests
+    private static final StaticResponse SHUTTING_DOWN = new StaticResponse("503 Service Unavailable", "text/html",
+            "<html><body><h1>503 Service Unavailable</h1><p>The server is restarting, please try again.</p></body></html>");
+
+    private final ServerSocketChannel[] serverChannels; // Channels to listen for incoming connections (one per acceptor with SO_REUSEPORT, otherwise one shared)
+    private SelectorAcceptor[] acceptors; // Accept connections and parse their requests
+    private Thread[] serverThreads; // Threads to handle incoming requests (one per SelectorAcceptor)
+    private final WorkerPool workerPool; // Pool of worker threads to process the requests
+    private final ServerConfig config; // Settings of the server
+    private final RequestQueue requestQueue; // Request queue to store incoming requests
 
     /*
         Constructor
-        - Create a server socket on the specified port
-        - Set the request queue for the IndexRequest
+        - Create a server channel on the specified port
+        - Set the queue snapshots for the IndexRequest
 
         @param port: Port number to listen for incoming connections
      */
     public Server(int port) {
+        this(new ServerConfig().setPort(port));
+    }
+
+    /*
+        Constructor
+        - Create the server channels on the configured port (see openChannels())
+        - Create the worker pool in the configured execution mode
+        - Set the queue snapshots for the IndexRequest
+        - Create the metrics the workers record into, and the MetricsRequest exports
+        - Set the priority policy every request is ranked with
+        - Install the configured log
+
+        @param config: Port, acceptors, execution mode, pool sizes, request queue and priority policy of the server
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
+        Log.install(new Log(config.getLogLevel(), config.getLogFile(), config.getLogBufferSize()));
+
         try {
-            serverSocket = new ServerSocket(port); // Create a server socket on the specified port
+            serverChannels = openChannels(config);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        IndexRequest.requestQueue = requestQueue; // Set the request queue for the IndexRequest (which uses it for sorted display)
+        Request.policy = config.getPriorityPolicy(); // Set before any request is parsed (queues sized by a policy get it passed to their constructor)
+        requestQueue = config.getRequestQueue();
+        Metrics metrics = new Metrics(requestQueue, WorkerPool.capacity(config), config.getRateLimiter());
+        workerPool = new WorkerPool(config, metrics);
+        MetricsRequest.metrics = metrics; // Set the metrics for the MetricsRequest ("/metrics")
+        IndexRequest.queueSnapshot = new QueueSnapshot(requestQueue, config.getSnapshotMaxAgeMillis()); // Set the queue snapshots for the IndexRequest (which uses them for sorted display)
     }
 
 
+    /*
+        Open the listening channels
+        - One acceptor: a single channel
+        - Several acceptors: one channel per acceptor, all bound to the same port with SO_REUSEPORT, so the kernel
+          spreads new connections over them (and over the acceptor threads)
+        - Where SO_REUSEPORT is not supported, a single channel that every acceptor's selector watches; the acceptors
+          then race for each connection, and the losers' accept() returns null
+     */
+    private static ServerSocketChannel[] openChannels(ServerConfig config) throws IOException {
+        int acceptors = Math.max(1, config.getAcceptorThreads());
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        first.bind(new InetSocketAddress(config.getPort()));
+
+        if (!reusePort) {
+            if (acceptors > 1) Log.warn("SO_REUSEPORT is not supported, " + acceptors + " acceptors share one listening channel");
+            return new ServerSocketChannel[] { first };
+        }
+
+        ServerSocketChannel[] channels = new ServerSocketChannel[acceptors];
+        channels[0] = first;
+        for (int i = 1; i < acceptors; i++) {
+            channels[i] = ServerSocketChannel.open();
+            channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channels[i].bind(new InetSocketAddress(first.socket().getLocalPort())); // The port the first one got (config port 0 picks a free one)
+        }
+        return channels;
+    }
+
+    /*
+        Get the port the server listens on
+     */
+    public int getPort() {
+        return serverChannels[0].socket().getLocalPort();
+    }
+
     /*
         Start the server
-        - Create a thread to handle incoming requests
-        - Create a pool of worker threads to process the requests
+        - Create the threads to handle incoming requests
+        - Start the pool of worker threads to process the requests
 
-        The receiver thread
-        - Listens for incoming connections
-        - Parses the incoming request
-        - Adds the request to the queue
+        The receiver threads (see SelectorAcceptor), one per configured acceptor
+        - Listen for incoming connections without blocking on any single one
+        - Each has its own parse stage, and all of them feed the one request queue
+        - Read and parse each incoming request as its bytes arrive
+        - Add the fully parsed request to the queue
+        - Keep connections open for further (pipelined) requests
 
-        The worker threads
+        The worker threads (see WorkerPool)
         - Get the next request from the queue
-        - Process the request
+        - Process the request (on the worker itself, or on a virtual thread in VIRTUAL mode)
      */
     public void start() {
-        System.out.println("Server is running on port " + serverSocket.getLocalPort());
-
-         this.serverThread = new Thread(() -> {
-            try {
-                while (true) {
-                    Request r = Request.parse(serverSocket.accept()); // Parse the incoming request
-                    if (r != null) requestQueue.put(r); // Add the request to the queue
-                }
-            } catch (Exception ignored) {}
-        });
-        serverThread.start();
-
-        workerThreads = new Thread[4];
-        for (int i = 0; i < workerThreads.length; i++) {
-            workerThreads[i] = new Thread(() -> {
-                try {
-                    while (true) {
-                        Request r = requestQueue.take(); // Get the next request from the queue
-                        if (r == null) break; // Break the loop if the request is null (queue is closed)
-                        System.out.println("Processing request");
-                        r.process(); // Process the request
-                    }
-                } catch (Exception ignored) {}
-            });
-            workerThreads[i].start();
+        int count = Math.max(1, config.getAcceptorThreads());
+        Log.info("Server is running on port " + getPort() + (count > 1 ? " with " + count + " acceptors" : ""));
+
+        acceptors = new SelectorAcceptor[count];
+        serverThreads = new Thread[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                acceptors[i] = new SelectorAcceptor(serverChannels[i % serverChannels.length], requestQueue, config);
+                serverThreads[i] = new Thread(acceptors[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+        for (Thread t : serverThreads) t.start();
+
+        workerPool.start(requestQueue);
     }
 
 
     /*
-        Stop the server
-        - Uses the interrupt method to stop the server thread and worker threads
+        Stop the server, draining it for up to the configured drain timeout (see stop(long))
      */
     public void stop() {
-        serverThread.interrupt();
-        for (Thread t : workerThreads) {
-            t.interrupt();
-        }
+        stop(config.getDrainTimeoutMillis());
+    }
+
+    /*
+        Stop the server gracefully
+        1. Stop accepting: the listening channels are closed, idle connections are closed, and no connection is read
+           from anymore. Connections with a request queued or in process close after its response
+        2. Let the workers process everything already queued, until the queue is empty or the deadline passes
+        3. Stop the workers; the ones processing a request finish it (until the deadline)
+        4. Let the acceptors write the response output slow clients have not read yet (until the deadline)
+        5. Close the queue, which hands over any request it still held back (the journal's last group commit), then
+           answer everything still queued with a 503, close its connection, and complete it. Every request that was
+           queued when the server stopped gets the same answer, and a journal does not replay it
+        6. Stop the acceptor threads, which close any connection that is still open
+
+        @param drainTimeoutMillis: How long queued and in-process requests may take to finish (0 to stop right away)
+     */
+    public void stop(long drainTimeoutMillis) {
+        long deadline = System.nanoTime() + drainTimeoutMillis * 1_000_000;
+        int shed = 0;
 
         try {
-            serverSocket.close();
-        } catch (IOException ignored) {}
+            for (SelectorAcceptor acceptor : acceptors) acceptor.drain();
+            while (requestQueue.size() > 0 && System.nanoTime() - deadline < 0) {
+                Thread.sleep(1);
+            }
+
+            workerPool.stop();
+            if (!workerPool.awaitTermination(deadline)) Log.warn("Drain timed out with requests still in process");
+            for (SelectorAcceptor acceptor : acceptors) {
+                while (acceptor.isWriting() && System.nanoTime() - deadline < 0) Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            requestQueue.close();
+            for (Request r; (r = requestQueue.pollLowest()) != null; shed++) {
+                r.reject(SHUTTING_DOWN);
+                requestQueue.complete(r);
+            }
+
+            for (Thread t : serverThreads) t.interrupt();
+            for (ServerSocketChannel channel : serverChannels) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        Log.info("Server stopped" + (shed > 0 ? ", " + shed + " queued requests answered with 503" : ""));
     }
 }
@@ -0,0 +1,79 @@
+import java.nio.file.Path;
+
+/*
+    Server Config
+    - Holds the tunable settings of a Server
+    - Every setter returns the config, so settings can be chained:
+        new Server(new ServerConfig().setPort(8080).setExecutionMode(ServerConfig.ExecutionMode.VIRTUAL))
+ */
+public class ServerConfig {
+
+    /*
+        How the worker pool runs requests
+        - PLATFORM: a fixed number of platform threads, each taking and processing one request at a time
+        - VIRTUAL: one dispatcher thread takes requests in priority order and runs each on its own virtual thread
+     */
+    public enum ExecutionMode { PLATFORM, VIRTUAL }
+
+    private int port = 8080; // Port number to listen for incoming connections
+    private int acceptorThreads = 1; // Acceptor threads, each with its own SO_REUSEPORT listening channel when there are several
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM; // How requests are run
+    private int workerThreads = 4; // Number of platform workers (PLATFORM mode)
+    private int maxVirtualThreads = 256; // Cap on requests processed at once (VIRTUAL mode)
+    private RequestQueue requestQueue = new HeapRequestQueue(); // Queue implementation between the acceptor and the workers
+    private long keepAliveTimeoutMillis = 5000; // Idle time after which a kept-alive connection is closed
+    private int maxRequestsPerConnection = 100; // Requests served on one connection before it is closed
+    private long snapshotMaxAgeMillis = 250; // How long the IndexRequest reuses a snapshot of the queue
+    private PriorityPolicy priorityPolicy = PriorityPolicy.DEFAULT; // Rules the priority keys of requests are computed with
+    private RateLimiter rateLimiter = null; // Per-client rate limit checked as requests are parsed (null for none)
+    private Log.Level logLevel = Log.Level.INFO; // Lowest level that is logged (INFO includes the access log)
+    private Path logFile = null; // File the log is appended to (null for stdout)
+    private int logBufferSize = 8192; // Log records buffered before new ones are dropped
+    private long drainTimeoutMillis = 10_000; // How long Server.stop() lets queued and in-process requests finish
+
+    // Getters and Setters
+    public int getPort() { return port; }
+    public ServerConfig setPort(int port) { this.port = port; return this; }
+
+    public int getAcceptorThreads() { return acceptorThreads; }
+    public ServerConfig setAcceptorThreads(int acceptorThreads) { this.acceptorThreads = acceptorThreads; return this; }
+
+    public ExecutionMode getExecutionMode() { return executionMode; }
+    public ServerConfig setExecutionMode(ExecutionMode executionMode) { this.executionMode = executionMode; return this; }
+
+    public int getWorkerThreads() { return workerThreads; }
+    public ServerConfig setWorkerThreads(int workerThreads) { this.workerThreads = workerThreads; return this; }
+
+    public int getMaxVirtualThreads() { return maxVirtualThreads; }
+    public ServerConfig setMaxVirtualThreads(int maxVirtualThreads) { this.maxVirtualThreads = maxVirtualThreads; return this; }
+
+    public RequestQueue getRequestQueue() { return requestQueue; }
+    public ServerConfig setRequestQueue(RequestQueue requestQueue) { this.requestQueue = requestQueue; return this; }
+
+    public long getKeepAliveTimeoutMillis() { return keepAliveTimeoutMillis; }
+    public ServerConfig setKeepAliveTimeoutMillis(long keepAliveTimeoutMillis) { this.keepAliveTimeoutMillis = keepAliveTimeoutMillis; return this; }
+
+    public int getMaxRequestsPerConnection() { return maxRequestsPerConnection; }
+    public ServerConfig setMaxRequestsPerConnection(int maxRequestsPerConnection) { this.maxRequestsPerConnection = maxRequestsPerConnection; return this; }
+
+    public long getSnapshotMaxAgeMillis() { return snapshotMaxAgeMillis; }
+    public ServerConfig setSnapshotMaxAgeMillis(long snapshotMaxAgeMillis) { this.snapshotMaxAgeMillis = snapshotMaxAgeMillis; return this; }
+
+    public PriorityPolicy getPriorityPolicy() { return priorityPolicy; }
+    public ServerConfig setPriorityPolicy(PriorityPolicy priorityPolicy) { this.priorityPolicy = priorityPolicy; return this; }
+
+    public RateLimiter getRateLimiter() { return rateLimiter; }
+    public ServerConfig setRateLimiter(RateLimiter rateLimiter) { this.rateLimiter = rateLimiter; return this; }
+
+    public Log.Level getLogLevel() { return logLevel; }
+    public ServerConfig setLogLevel(Log.Level logLevel) { this.logLevel = logLevel; return this; }
+
+    public Path getLogFile() { return logFile; }
+    public ServerConfig setLogFile(Path logFile) { this.logFile = logFile; return this; }
+
+    public int getLogBufferSize() { return logBufferSize; }
+    public ServerConfig setLogBufferSize(int logBufferSize) { this.logBufferSize = logBufferSize; return this; }
+
+    public long getDrainTimeoutMillis() { return drainTimeoutMillis; }
+    public ServerConfig setDrainTimeoutMillis(long drainTimeoutMillis) { this.drainTimeoutMillis = drainTimeoutMillis; return this; }
+}
@@ -1,11 +1,9 @@
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-
 /*
     Shopping Request
     - Displays a shopping page
  */
 public class ShoppingRequest extends Request {
+    private static final StaticResponse RESPONSE = new StaticResponse("200 OK", "text/html", "<html><body><h1>Shopping!</h1></body></html>"); // Encoded once
 
     /*
         Process the Shopping Request
@@ -13,22 +11,13 @@ public class ShoppingRequest extends Request {
      */
     @Override
     public void process() {
-        System.out.println("Shopping Request Received!");
+        Log.debug("Shopping Request Received!");
 
         try {
-            String response = "HTTP/1.1 200 OK\r\n" +
-                    "Content-Type: text/html\r\n" +
-                    "\r\n" +
-                    "<html><body><h1>Shopping!</h1></body></html>";
-
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-
-            writer.write(response);
-            writer.flush();
-
-            clientSocket.close();
+            send(RESPONSE);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Failed to respond to " + path, e);
+            abort();
         }
     }
 }
@@ -0,0 +1,25 @@
+/*
+    Static Request
+    - Serves a response registered with StaticResponse.register()
+ */
+public class StaticRequest extends Request {
+    private final StaticResponse response; // The registered response for the path
+
+    public StaticRequest(StaticResponse response) {
+        this.response = response;
+    }
+
+    /*
+        Process the Static Request
+        - Return the precomputed response
+     */
+    @Override
+    public void process() {
+        try {
+            send(response);
+        } catch (Exception e) {
+            Log.error("Failed to respond to " + path, e);
+            abort();
+        }
+    }
+}
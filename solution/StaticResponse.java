@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+    Static Response
+    - A response that never changes, encoded once into read-only direct ByteBuffers
+    - The head is precomputed twice (with "Connection: keep-alive" and with "Connection: close"), so sending it
+      is a single gathering write of head + body with no encoding or concatenation
+    - Static routes register their response by path, which adds a route serving it with a StaticRequest
+
+    Sample:
+        StaticResponse.register("/about", new StaticResponse("200 OK", "text/html", "<html>...</html>"));
+ */
+public final class StaticResponse {
+    private final ByteBuffer keepAliveHead, closeHead, body; // Shared buffers, only ever sent through duplicates
+
+    /*
+        Constructor
+        - Encodes the head (with the right Content-Length) and the body
+
+        @param status: Status line after "HTTP/1.1 ", e.g. "200 OK"
+        @param contentType: Content-Type of the body
+        @param body: Response body
+     */
+    public StaticResponse(String status, String contentType, String body) {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + bodyBytes.length + "\r\n" +
+                "Connection: ";
+
+        this.keepAliveHead = encode((head + "keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        this.closeHead = encode((head + "close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        this.body = encode(bodyBytes);
+    }
+
+    /*
+        Register a static route
+
+        @param path: Route pattern the response is served for (see Router)
+        @param response: The response
+     */
+    public static void register(String path, StaticResponse response) {
+        Request.router.add(path, () -> new StaticRequest(response));
+    }
+
+    /*
+        The buffers to write, head first
+        - Duplicates share the encoded bytes but have their own position, so workers can write them concurrently
+
+        @param keepAlive: Whether the connection stays open after this response
+     */
+    public ByteBuffer[] buffers(boolean keepAlive) {
+        return new ByteBuffer[] { (keepAlive ? keepAliveHead : closeHead).duplicate(), body.duplicate() };
+    }
+
+    private static ByteBuffer encode(byte[] bytes) {
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Waiter Stack
+    - The blocking layer of the monitor-based queues (HeapRequestQueue, PrimitiveHeapRequestQueue,
+      AgingRequestQueue): threads waiting for an element park on their own node with LockSupport, and a producer
+      hands an element straight to one waiter and unparks only that thread
+        - No thundering herd: one element wakes exactly one thread, and the woken thread never competes for the
+          queue's monitor again, it already holds its element
+        - LIFO: the thread that parked last is woken first. Its stack and caches are still warm, and under light load
+          the same few workers do all the work while the others stay parked
+    - A Treiber stack (lock-free linked stack, CAS on the head) of nodes, one per waiting thread. Every node has a
+      state, changed by CAS exactly once:
+        - WAITING -> FULFILLED by fulfill(), which stores the element before the CAS and unparks the thread after
+        - WAITING -> CANCELLED by the waiter itself, when its timeout passes or it is interrupted
+      Whichever CAS wins decides the outcome, so a waiter that gives up at the same time as it is handed an element
+      either gets the element or the producer sees the failed fulfill() and offers it to the next waiter: nothing is
+      lost and nothing is taken twice
+    - No lost wakeups: the queue pushes a node only while holding its monitor after seeing it empty, and producers
+      pop and fulfill under the same monitor, so an element put after the check always finds the node. unpark()
+      before park() is remembered by the thread, so fulfilling a node whose thread has not parked yet is fine
+    - Spurious wakeups (and unparks meant for an earlier use of the thread) only make await() check its node's
+      state again
+    - Cancelled nodes are unlinked lazily: from the head by the thread that cancels, and skipped by pop()
+    - On a machine with more than one core, await() spins briefly before parking, so a handoff that comes right
+      away costs no park/unpark at all
+
+    Sample (caller holds the queue's monitor for push() and pop()):
+        synchronized (this) { if (!isEmpty()) return removeFirst(); node = waiters.push(); }
+        return waiters.await(node, false, 0);
+ */
+public class WaiterStack<E> {
+    private static final int WAITING = 0, FULFILLED = 1, CANCELLED = 2; // Node states
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0; // State checks before parking
+
+    /*
+        A waiting thread
+     */
+    public static final class Node<E> {
+        private final Thread thread = Thread.currentThread();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private E item; // Handed element (written before the state CAS, read after seeing FULFILLED)
+        private Node<E> next; // Next older node (fixed once pushed)
+
+        /*
+            Hand an element to the waiting thread and unpark it
+
+            @return: false if the waiter gave up first (the element is still the caller's)
+         */
+        public boolean fulfill(E element) {
+            item = element;
+            if (!state.compareAndSet(WAITING, FULFILLED)) {
+                item = null;
+                return false;
+            }
+            LockSupport.unpark(thread);
+            return true;
+        }
+    }
+
+    private final AtomicReference<Node<E>> head = new AtomicReference<>(); // Newest waiter
+
+    /*
+        Register the calling thread as a waiter (before checking the queue again would be too late: call it under
+        the queue's monitor, right after seeing the queue empty)
+
+        @return: The node to await()
+     */
+    public Node<E> push() {
+        Node<E> node = new Node<>();
+        Node<E> h;
+        do {
+            h = head.get();
+            node.next = h;
+        } while (!head.compareAndSet(h, node));
+        return node;
+    }
+
+    /*
+        Remove the newest waiter that has not given up
+
+        @return: Its node, to fulfill(), or null if no thread is waiting. fulfill() can still fail if the waiter
+                 gives up in between
+     */
+    public Node<E> pop() {
+        while (true) {
+            Node<E> h = head.get();
+            if (h == null) return null;
+            if (head.compareAndSet(h, h.next) && h.state.get() == WAITING) return h;
+        }
+    }
+
+    /*
+        Whether a thread may be waiting (cancelled nodes not unlinked yet count too)
+     */
+    public boolean hasWaiters() {
+        return head.get() != null;
+    }
+
+    /*
+        Wait until the node is fulfilled, the timeout passes or the thread is interrupted
+
+        @param node: What push() returned, in this thread
+        @param timed: Whether to give up at deadlineNanos
+        @param deadlineNanos: System.nanoTime() to give up at
+        @return: The handed element, or null if the wait ended first (an interrupt stays set)
+     */
+    public E await(Node<E> node, boolean timed, long deadlineNanos) {
+        for (int spins = SPINS; spins > 0 && node.state.get() == WAITING; spins--) Thread.onSpinWait();
+
+        while (node.state.get() == WAITING) {
+            if (Thread.currentThread().isInterrupted()) break;
+            if (timed) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) break;
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+
+        if (node.state.compareAndSet(WAITING, CANCELLED)) {
+            unlinkCancelled();
+            return null;
+        }
+        return node.item; // Fulfilled, possibly while giving up
+    }
+
+    /*
+        Pop cancelled nodes off the top of the stack (nodes deeper down are skipped by pop())
+     */
+    private void unlinkCancelled() {
+        Node<E> h;
+        while ((h = head.get()) != null && h.state.get() == CANCELLED) head.compareAndSet(h, h.next);
+    }
+}
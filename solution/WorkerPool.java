@@ -0,0 +1,208 @@
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Worker Pool
+    - Takes requests from the RequestQueue in priority order and processes them
+    - PLATFORM mode: a fixed pool of platform threads, each looping on take() and process()
+        - Adaptive batches: while the queue is deep, a worker takes up to queue size / (2 * workers) requests
+          (at most MAX_BATCH) with one takeBatch(), so the queue's lock is taken once per batch instead of once per
+          request. While the queue is shallow the batch size is 1 and the worker uses take(), in strict order
+        - A batch is the top of the queue when it is taken, and batches are taken in order, so priority order only
+          bends inside a batch: a request that arrives while a worker works through its batch can be passed by at
+          most MAX_BATCH - 1 requests of that batch. All batches together hold at most half the queue, so the
+          requests left in the queue are always the lower half
+    - VIRTUAL mode: a single dispatcher thread loops on take() and starts every request on its own virtual thread
+        - At most maxVirtualThreads requests are processed at once
+        - The dispatcher only takes a request once a slot is free, so waiting requests stay in the queue in priority order
+        - It takes as many requests at once as there are free slots (at most MAX_BATCH); they all start right away
+    - Every processed request is timed into the Metrics and written to the access log
+    - A thread is never interrupted while it processes a request: the connection channels are interruptible, so an
+      interrupt in the middle of a write would close the client's connection
+ */
+public class WorkerPool {
+    private static final int MAX_BATCH = 16; // Most requests taken with one takeBatch()
+
+    private final ServerConfig config; // Execution mode and pool sizes
+    private final Metrics metrics; // Where processing times are recorded
+    private Worker[] workers; // Platform workers, or the single dispatcher in VIRTUAL mode
+    private RequestQueue requestQueue; // Queue the requests are taken from (set by start())
+    private Semaphore slots; // Free virtual thread slots (VIRTUAL mode)
+    private volatile boolean stopping; // Set by stop(): take no more requests
+
+    public WorkerPool(ServerConfig config, Metrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /*
+        Requests that can be processed at once in the configured execution mode
+     */
+    public static int capacity(ServerConfig config) {
+        return config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL ? config.getMaxVirtualThreads() : config.getWorkerThreads();
+    }
+
+    /*
+        A worker (or dispatcher) thread
+        - busy is guarded by the worker's monitor, so stop() can only interrupt it while it is not processing
+     */
+    private static final class Worker {
+        Thread thread;
+        boolean busy; // Processing a request it took
+    }
+
+    /*
+        Start the pool
+        - Create the worker threads (or the dispatcher) for the configured execution mode
+
+        @param requestQueue: Queue to take the requests from
+     */
+    public void start(RequestQueue requestQueue) {
+        this.requestQueue = requestQueue;
+        if (config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL) {
+            slots = new Semaphore(config.getMaxVirtualThreads());
+
+            Worker dispatcher = new Worker();
+            dispatcher.thread = new Thread(() -> dispatch(requestQueue));
+            workers = new Worker[] { dispatcher };
+        } else {
+            workers = new Worker[config.getWorkerThreads()];
+            for (int i = 0; i < workers.length; i++) {
+                Worker worker = workers[i] = new Worker();
+                worker.thread = new Thread(() -> work(worker, requestQueue));
+            }
+        }
+
+        for (Worker w : workers) w.thread.start();
+    }
+
+    /*
+        Platform worker loop: take a request, process it, repeat
+     */
+    private void work(Worker worker, RequestQueue requestQueue) {
+        while (!stopping) {
+            int max = batchSize(requestQueue);
+            List<Request> batch;
+            if (max == 1) {
+                Request r = requestQueue.take(); // Get the next request from the queue
+                if (r == null) break; // Break the loop if the request is null (queue is closed)
+                batch = List.of(r);
+            } else {
+                batch = requestQueue.takeBatch(max, 0, TimeUnit.NANOSECONDS); // Never waits: the queue was deep
+                if (batch == null) break;
+            }
+
+            synchronized (worker) {
+                worker.busy = true;
+                Thread.interrupted(); // Clear an interrupt from stop() that came in as take() returned
+            }
+            try {
+                for (Request r : batch) process(r); // A batch is finished even after stop(), nothing else would answer it
+            } finally {
+                synchronized (worker) { worker.busy = false; }
+            }
+        }
+    }
+
+    /*
+        Number of requests a platform worker takes at once: queue size / (2 * workers), between 1 and MAX_BATCH
+     */
+    private int batchSize(RequestQueue requestQueue) {
+        return Math.max(1, Math.min(MAX_BATCH, requestQueue.size() / (2 * workers.length)));
+    }
+
+    /*
+        Dispatcher loop (VIRTUAL mode): wait for a slot, take as many requests as there are free slots, start a
+        virtual thread for each, repeat
+        - The dispatcher never writes to a connection itself, so it can be interrupted at any time
+     */
+    private void dispatch(RequestQueue requestQueue) {
+        try {
+            while (!stopping) {
+                slots.acquire(); // Wait for a free slot before taking, so the queue keeps ordering the backlog
+                int free = 1;
+                while (free < MAX_BATCH && slots.tryAcquire()) free++;
+
+                List<Request> batch = requestQueue.takeBatch(free, Long.MAX_VALUE, TimeUnit.NANOSECONDS); // Get the next requests from the queue
+                if (batch == null) { // Break the loop if interrupted (pool is stopping)
+                    slots.release(free);
+                    break;
+                }
+                slots.release(free - batch.size());
+
+                for (Request r : batch) {
+                    Thread.ofVirtual().start(() -> { // Virtual threads are never interrupted
+                        try {
+                            process(r);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    /*
+        Stop the pool
+        - No worker takes another request from the queue
+        - Idle workers are interrupted out of take(); busy ones finish the request they are processing, then stop
+        - Virtual threads that are already processing a request finish it
+     */
+    public void stop() {
+        stopping = true;
+        for (Worker w : workers) {
+            synchronized (w) {
+                if (!w.busy) w.thread.interrupt();
+            }
+        }
+    }
+
+    /*
+        Wait until every request taken from the queue is processed (after stop())
+
+        @param deadline: nanoTime to give up at
+        @return: true if the pool stopped before the deadline
+     */
+    public boolean awaitTermination(long deadline) throws InterruptedException {
+        for (Worker w : workers) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !w.thread.join(Duration.ofNanos(remaining))) return false;
+        }
+
+        if (slots == null) return true;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || !slots.tryAcquire(config.getMaxVirtualThreads(), remaining, TimeUnit.NANOSECONDS)) return false;
+        slots.release(config.getMaxVirtualThreads());
+        return true;
+    }
+
+    /*
+        Process a request
+        - Times it into the Metrics and writes an access log record (INFO):
+            GET /shopping route=/shopping wait=0.042ms process=0.310ms
+     */
+    private void process(Request r) {
+        long start = metrics.started();
+        try {
+            r.process(); // Process the request
+        } catch (Exception e) {
+            Log.error("Failed to process " + r.path, e);
+        } finally {
+            metrics.finished(r, start);
+            requestQueue.complete(r);
+        }
+
+        if (Log.isEnabled(Log.Level.INFO)) {
+            long end = System.nanoTime();
+            Log.info(r.method + " " + r.path + " route=" + r.getRoute()
+                    + " wait=" + millis(start - r.getReceiveTime()) + "ms process=" + millis(end - start) + "ms");
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}